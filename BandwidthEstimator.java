@@ -0,0 +1,235 @@
+package network_design_project;
+
+/*
+ * BBR-style model of the path, built from ACK timing instead of loss.
+ *
+ * Keeps the bottleneck bandwidth (max delivery rate over the last few round trips)
+ * and the minimum RTT, and turns them into a pacing rate and a cap on packets in flight.
+ * Losses from dropChance/corruption don't move either estimate, so they don't shrink the rate.
+ */
+class BandwidthEstimator {
+
+	//states
+	final int STARTUP = 0;
+	final int DRAIN = 1;
+	final int PROBE_BW = 2;
+	final int PROBE_RTT = 3;
+
+	final double HIGH_GAIN = 2.885; //2/ln(2), doubles the delivery rate each round in startup
+	final double[] PROBE_BW_GAINS = {1.25, 0.75, 1, 1, 1, 1, 1, 1};
+	final double CWND_GAIN = 2;
+	final int BW_WINDOW_ROUNDS = 10; //rounds the max bandwidth filter remembers
+	final long MIN_RTT_WINDOW_NANOS = 10000000000L; //10s before min RTT has to be re-measured
+	final long PROBE_RTT_NANOS = 200000000L; //200ms at the minimum window to re-measure min RTT
+	final int MIN_INFLIGHT_PACKETS = 4;
+	final int QUANTIZATION_PACKETS = 3; //headroom for ACKs that arrive in bunches, as Linux BBR does
+
+	int packetSize;
+	int initialWindow;
+
+	int state;
+	double pacingGain;
+	double cwndGain;
+
+	//delivery accounting
+	long delivered; //total bytes ACKed
+	long deliveredTime; //System.nanoTime() delivered was last updated
+
+	//bottleneck bandwidth max filter, one slot per round trip
+	double[] roundMaxBw; //bytes per nanosecond
+	long roundCount;
+	long roundEndDelivered; //a round ends when a packet sent after this much was delivered gets ACKed
+
+	//min RTT filter
+	long minRttNanos;
+	long minRttStamp;
+
+	//startup plateau detection
+	double fullBw;
+	int fullBwRounds;
+
+	int cycleIndex;
+	long cycleStamp;
+	long probeRttDone;
+
+	BandwidthEstimator(int packetSize, int initialWindow)
+	{
+		this.packetSize = packetSize;
+		this.initialWindow = initialWindow;
+		roundMaxBw = new double[BW_WINDOW_ROUNDS];
+		deliveredTime = System.nanoTime();
+		enterStartup();
+	}
+
+	/*
+	 * Delivery accounting to remember for a packet when it is sent
+	 */
+	long getDelivered()
+	{
+		return delivered;
+	}
+
+	long getDeliveredTime()
+	{
+		return deliveredTime;
+	}
+
+	/*
+	 * Update the model for an ACK.
+	 * deliveredAtSend and deliveredTimeAtSend are what getDelivered()/getDeliveredTime()
+	 * returned when the newest ACKed packet was sent. rttNanos is 0 if that packet was retransmitted.
+	 */
+	void onAck(int ackedBytes, long deliveredAtSend, long deliveredTimeAtSend, long rttNanos, int inFlightPackets)
+	{
+		long now = System.nanoTime();
+		delivered += ackedBytes;
+		deliveredTime = now;
+
+		//new round trip once something sent after the last round started gets ACKed
+		if(deliveredAtSend >= roundEndDelivered)
+		{
+			roundEndDelivered = delivered;
+			roundCount++;
+			roundMaxBw[(int) (roundCount % BW_WINDOW_ROUNDS)] = 0;
+			checkFullBandwidth();
+		}
+
+		long interval = now - deliveredTimeAtSend;
+		if(interval > 0)
+		{
+			double rate = (double) (delivered - deliveredAtSend) / interval;
+			int slot = (int) (roundCount % BW_WINDOW_ROUNDS);
+			if(rate > roundMaxBw[slot])
+				roundMaxBw[slot] = rate;
+		}
+
+		if(rttNanos > 0 && (minRttNanos == 0 || rttNanos <= minRttNanos || now - minRttStamp > MIN_RTT_WINDOW_NANOS))
+		{
+			minRttNanos = rttNanos;
+			minRttStamp = now;
+		}
+
+		updateState(now, inFlightPackets);
+	}
+
+	/*
+	 * Leave startup once the bandwidth stops growing by 25% a round for 3 rounds
+	 */
+	void checkFullBandwidth()
+	{
+		if(state != STARTUP)
+			return;
+		double bw = getBottleneckBandwidth();
+		if(bw >= fullBw * 1.25)
+		{
+			fullBw = bw;
+			fullBwRounds = 0;
+		}
+		else if(++fullBwRounds >= 3)
+		{
+			state = DRAIN;
+			pacingGain = 1 / HIGH_GAIN;
+			cwndGain = HIGH_GAIN;
+		}
+	}
+
+	void updateState(long now, int inFlightPackets)
+	{
+		if(state == DRAIN && inFlightPackets * packetSize <= getBdp())
+			enterProbeBw(now);
+
+		if(state == PROBE_BW && minRttNanos > 0 && now - cycleStamp > minRttNanos)
+		{
+			//move to the next gain each min RTT
+			cycleIndex = (cycleIndex + 1) % PROBE_BW_GAINS.length;
+			cycleStamp = now;
+			pacingGain = PROBE_BW_GAINS[cycleIndex];
+		}
+
+		if(state != PROBE_RTT && state != STARTUP && minRttStamp > 0 && now - minRttStamp > MIN_RTT_WINDOW_NANOS)
+		{
+			//min RTT is stale, drain the queue for a moment so it can be measured again
+			state = PROBE_RTT;
+			pacingGain = 1;
+			probeRttDone = now + Math.max(PROBE_RTT_NANOS, minRttNanos);
+		}
+		else if(state == PROBE_RTT && now > probeRttDone)
+		{
+			minRttStamp = now;
+			enterProbeBw(now);
+		}
+	}
+
+	void enterStartup()
+	{
+		state = STARTUP;
+		pacingGain = HIGH_GAIN;
+		cwndGain = HIGH_GAIN;
+	}
+
+	void enterProbeBw(long now)
+	{
+		state = PROBE_BW;
+		cwndGain = CWND_GAIN;
+		cycleIndex = 0;
+		cycleStamp = now;
+		pacingGain = PROBE_BW_GAINS[cycleIndex];
+	}
+
+	/*
+	 * Returns the max delivery rate seen in the last BW_WINDOW_ROUNDS rounds, in bytes per nanosecond
+	 */
+	double getBottleneckBandwidth()
+	{
+		double max = 0;
+		for(double bw : roundMaxBw)
+		{
+			if(bw > max)
+				max = bw;
+		}
+		return max;
+	}
+
+	/*
+	 * Bandwidth-delay product in bytes
+	 */
+	double getBdp()
+	{
+		return getBottleneckBandwidth() * minRttNanos;
+	}
+
+	/*
+	 * Pacing rate in bytes per second, 0 until there is a bandwidth sample
+	 */
+	double getPacingRate()
+	{
+		return pacingGain * getBottleneckBandwidth() * 1e9;
+	}
+
+	/*
+	 * Packets allowed in flight
+	 */
+	int getInflightCap()
+	{
+		if(state == PROBE_RTT)
+			return MIN_INFLIGHT_PACKETS;
+		if(minRttNanos == 0 || getBottleneckBandwidth() == 0)
+			return initialWindow;
+		int cap = (int) Math.ceil(cwndGain * getBdp() / packetSize) + QUANTIZATION_PACKETS;
+		return Math.max(MIN_INFLIGHT_PACKETS, cap);
+	}
+
+	/*
+	 * Returns the state name for logging
+	 */
+	String getStateName()
+	{
+		switch(state)
+		{
+			case STARTUP: return "STARTUP";
+			case DRAIN: return "DRAIN";
+			case PROBE_BW: return "PROBE_BW";
+			default: return "PROBE_RTT";
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package network_design_project;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+
+/*
+ * Packs many files into one stream so they can go through a single transfer.
+ *
+ * Each file is a frame: nameLength(2) name(UTF-8) offset(8) length(8) then the file's bytes,
+ * where offset is the position of those bytes in the stream.
+ * BatchOutputStream unpacks it on the server.
+ */
+class BatchInputStream extends InputStream {
+
+	static final int FRAME_FIXED_SIZE = 18; //frame header without the name
+
+	String[] fileNames;
+	long[] fileLengths;
+	long length; //total stream length, frames included
+
+	int fileIndex; //next file to open
+	byte[] frameHeader;
+	int headerPos;
+	InputStream current;
+	long currentRemaining;
+	long position;
+
+	BatchInputStream(String[] fileNames) throws IOException
+	{
+		this.fileNames = fileNames;
+		fileLengths = new long[fileNames.length];
+		length = 0;
+		HashSet<String> sendNames = new HashSet<String>();
+		for(int i = 0; i < fileNames.length; i++)
+		{
+			//two files with the same name would end up as one file on the server
+			String sendName = new File(fileNames[i]).getName();
+			if(!sendNames.add(sendName))
+				throw new IOException("More than one file in the batch is called " + sendName);
+			fileLengths[i] = new File(fileNames[i]).length();
+			length += FRAME_FIXED_SIZE + getSendName(i).length + fileLengths[i];
+		}
+		fileIndex = 0;
+		position = 0;
+	}
+
+	/*
+	 * Only the last part of the path is sent. The server writes everything into one directory
+	 */
+	byte[] getSendName(int i)
+	{
+		return new File(fileNames[i]).getName().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * Returns the length of the whole stream, frames included
+	 */
+	long getLength()
+	{
+		return length;
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		byte[] one = new byte[1];
+		if(read(one, 0, 1) == -1)
+			return -1;
+		return one[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		while(true)
+		{
+			if(frameHeader != null && headerPos < frameHeader.length)
+			{
+				int n = Math.min(len, frameHeader.length - headerPos);
+				System.arraycopy(frameHeader, headerPos, b, off, n);
+				headerPos += n;
+				position += n;
+				return n;
+			}
+			if(current != null && currentRemaining > 0)
+			{
+				int n = current.read(b, off, (int) Math.min(len, currentRemaining));
+				if(n == -1)
+					throw new IOException(fileNames[fileIndex - 1] + " got shorter while it was being sent");
+				currentRemaining -= n;
+				position += n;
+				return n;
+			}
+			if(!openNextFile())
+				return -1;
+		}
+	}
+
+	/*
+	 * Close the file being read and set up the frame for the next one.
+	 * Returns false when there are no files left
+	 */
+	boolean openNextFile() throws IOException
+	{
+		if(current != null)
+			current.close();
+		current = null;
+		if(fileIndex == fileNames.length)
+			return false;
+
+		byte[] name = getSendName(fileIndex);
+		ByteBuffer header = ByteBuffer.allocate(FRAME_FIXED_SIZE + name.length);
+		header.putShort((short) name.length);
+		header.put(name);
+		header.putLong(position + header.capacity());
+		header.putLong(fileLengths[fileIndex]);
+		frameHeader = header.array();
+		headerPos = 0;
+
+		current = new FileInputStream(fileNames[fileIndex]);
+		currentRemaining = fileLengths[fileIndex];
+		fileIndex++;
+		return true;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if(current != null)
+			current.close();
+		current = null;
+	}
+}
@@ -0,0 +1,154 @@
+package network_design_project;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+
+/*
+ * Unpacks a stream made by BatchInputStream into separate files in a directory.
+ *
+ * Frame headers are collected until complete, then the file's bytes are
+ * written straight through to it.
+ */
+class BatchOutputStream extends OutputStream {
+
+	File directory;
+
+	byte[] headerBuffer; //frame header collected so far
+	int headerLength;
+	OutputStream current;
+	String currentName;
+	long currentRemaining;
+	long position;
+	int filesWritten;
+	HashSet<String> names; //every file started from this stream
+
+	BatchOutputStream(File directory) throws IOException
+	{
+		if(!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Couldn't make directory " + directory);
+		this.directory = directory;
+		headerBuffer = new byte[BatchInputStream.FRAME_FIXED_SIZE + 0xFFFF];
+		headerLength = 0;
+		position = 0;
+		filesWritten = 0;
+		names = new HashSet<String>();
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		write(new byte[] {(byte) b}, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		while(len > 0)
+		{
+			int n;
+			if(current != null)
+			{
+				n = (int) Math.min(len, currentRemaining);
+				current.write(b, off, n);
+				currentRemaining -= n;
+				if(currentRemaining == 0)
+					finishFile();
+			}
+			else
+			{
+				n = Math.min(len, getHeaderSize() - headerLength);
+				System.arraycopy(b, off, headerBuffer, headerLength, n);
+				headerLength += n;
+				if(headerLength == getHeaderSize())
+					startFile(position + n);
+			}
+			off += n;
+			len -= n;
+			position += n;
+		}
+	}
+
+	/*
+	 * Size of the frame header being collected. Until the name length is in,
+	 * that's just the name length field
+	 */
+	int getHeaderSize()
+	{
+		if(headerLength < 2)
+			return 2;
+		int nameLength = ((headerBuffer[0] & 0xFF) << 8) | (headerBuffer[1] & 0xFF);
+		return BatchInputStream.FRAME_FIXED_SIZE + nameLength;
+	}
+
+	/*
+	 * Frame header is complete: open the file it describes
+	 */
+	void startFile(long dataPosition) throws IOException
+	{
+		ByteBuffer header = ByteBuffer.wrap(headerBuffer, 0, headerLength);
+		byte[] name = new byte[header.getShort() & 0xFFFF];
+		header.get(name);
+		long offset = header.getLong();
+		long length = header.getLong();
+		headerLength = 0;
+
+		if(offset != dataPosition)
+			throw new IOException("Batch frame says its data starts at " + offset + " but it is at " + dataPosition);
+
+		//never let the sender pick a path outside the directory
+		currentName = new File(new String(name, StandardCharsets.UTF_8)).getName();
+		if(!names.add(currentName))
+			throw new IOException("Batch has " + currentName + " twice, it would overwrite the first one");
+		current = new FileOutputStream(new File(directory, currentName));
+		currentRemaining = length;
+		if(currentRemaining == 0)
+			finishFile();
+	}
+
+	void finishFile() throws IOException
+	{
+		current.close();
+		current = null;
+		filesWritten++;
+	}
+
+	/*
+	 * Returns how many files have been written out completely
+	 */
+	int getFilesWritten()
+	{
+		return filesWritten;
+	}
+
+	/*
+	 * Rename every file the batch started to name.rejected, so files that failed
+	 * the hash check can't be taken for good ones. Call after close()
+	 */
+	void rejectFiles()
+	{
+		for(String name : names)
+		{
+			File rejected = new File(directory, name + ".rejected");
+			rejected.delete();
+			new File(directory, name).renameTo(rejected);
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if(current != null)
+		{
+			current.close();
+			current = null;
+			throw new IOException("Batch stream ended partway through " + currentName);
+		}
+		if(headerLength > 0)
+			throw new IOException("Batch stream ended partway through a frame header");
+	}
+}
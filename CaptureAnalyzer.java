@@ -0,0 +1,305 @@
+package network_design_project;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Replays a PacketCapture file to find out where a transfer spent its time.
+ *
+ * Usage: CaptureAnalyzer <capture file> [summary|timeseq|inflight|retransmits|stalls] [stall ms]
+ *
+ * summary prints totals. The others print CSV for graphing:
+ * timeseq is the time-sequence graph of data and ACKs, inflight is the unACKed bytes over time,
+ * retransmits lists every repeat of a sequence number and stalls lists stretches where
+ * data was outstanding but the cumulative ACK didn't move.
+ *
+ * Sequence numbers wrap at 16 bits, so they are unwrapped into packet indexes as the capture is read.
+ * Works on captures from either end: data is what the client sent, ACKs are what the server sent.
+ */
+public class CaptureAnalyzer {
+
+	static final long DEFAULT_STALL_MILLIS = 200;
+
+	int role;
+	long startTimeMillis;
+	ArrayList<Record> records;
+
+	//replay state
+	long highestData; //highest data packet index seen, -1 before any
+	long highestAck; //highest cumulative ACK index seen
+	TreeMap<Long, Integer> outstanding; //unACKed data packet index to its length
+	long outstandingBytes;
+	HashMap<Long, Long> firstSent; //data packet index to the time it was first seen
+	long progressTime; //last time the ACK moved, or data went out with nothing outstanding
+	int retransmitsSinceProgress;
+
+	//totals for the summary
+	long dataPackets;
+	long dataBytes;
+	long newDataBytes;
+	long retransmissions;
+	long acks;
+	long drops;
+	long corrupt;
+	long checksumFailures;
+	long maxOutstandingBytes;
+	long stalls;
+	long longestStallNanos;
+
+	String mode;
+	long stallNanos;
+
+	CaptureAnalyzer(String mode, long stallMillis)
+	{
+		this.mode = mode;
+		this.stallNanos = stallMillis * 1000000L;
+		records = new ArrayList<Record>();
+		outstanding = new TreeMap<Long, Integer>();
+		firstSent = new HashMap<Long, Long>();
+		highestData = -1;
+		highestAck = -1;
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		if(args.length < 1)
+		{
+			System.err.println("Usage: CaptureAnalyzer <capture file> [summary|timeseq|inflight|retransmits|stalls] [stall ms]");
+			System.exit(1);
+		}
+		String mode = args.length > 1 ? args[1] : "summary";
+		long stallMillis = args.length > 2 ? Long.parseLong(args[2]) : DEFAULT_STALL_MILLIS;
+
+		CaptureAnalyzer analyzer = new CaptureAnalyzer(mode, stallMillis);
+		analyzer.load(args[0]);
+		analyzer.replay();
+	}
+
+	/*
+	 * Read every record in the capture file
+	 */
+	void load(String fileName) throws IOException
+	{
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName)))) {
+			if(in.readInt() != PacketCapture.MAGIC)
+				throw new IOException(fileName + " is not a packet capture");
+			int version = in.readUnsignedByte();
+			if(version != PacketCapture.VERSION)
+				throw new IOException("Unsupported capture version " + version);
+			role = in.readUnsignedByte();
+			startTimeMillis = in.readLong();
+
+			while(true)
+			{
+				Record r = new Record();
+				try {
+					r.timeNanos = in.readLong();
+				} catch (EOFException e) {
+					break;
+				}
+				try {
+					r.direction = in.readUnsignedByte();
+					r.seqNum = in.readUnsignedShort();
+					r.length = in.readUnsignedShort();
+					r.flags = in.readUnsignedByte();
+					r.result = in.readUnsignedByte();
+				} catch (EOFException e) {
+					//agent was killed partway through a record
+					break;
+				}
+				records.add(r);
+			}
+		}
+	}
+
+	/*
+	 * Walk through the capture in order, printing the rows for the mode as we go
+	 */
+	void replay()
+	{
+		int dataDirection = role == PacketCapture.ROLE_CLIENT ? PacketCapture.DIRECTION_SENT : PacketCapture.DIRECTION_RECEIVED;
+		printHeader();
+		for(Record r : records)
+		{
+			if((r.result & PacketCapture.RESULT_DROPPED) != 0)
+				drops++;
+			if((r.result & PacketCapture.RESULT_CORRUPT) != 0)
+				corrupt++;
+			if((r.result & PacketCapture.RESULT_CHECKSUM_FAILED) != 0)
+			{
+				//can't trust anything in it
+				checksumFailures++;
+				emit("timeseq", r, "bad," + r.seqNum);
+				continue;
+			}
+			if(r.direction == dataDirection)
+				replayData(r);
+			else
+				replayAck(r);
+		}
+
+		long end = records.isEmpty() ? 0 : records.get(records.size() - 1).timeNanos;
+		if(!outstanding.isEmpty())
+			checkStall(end, true);
+		if(mode.equals("summary"))
+			printSummary(end);
+	}
+
+	void replayData(Record r)
+	{
+		long index = unwrap(r.seqNum, highestData < 0 ? 0 : highestData);
+		boolean repeat = index <= highestData;
+		dataPackets++;
+		dataBytes += r.length;
+		if(outstanding.isEmpty())
+			progressTime = r.timeNanos;
+
+		if(repeat)
+		{
+			retransmissions++;
+			retransmitsSinceProgress++;
+			Long first = firstSent.get(index);
+			long sinceFirst = first == null ? -1 : r.timeNanos - first;
+			emit("retransmits", r, index + "," + millis(sinceFirst) + "," + describe(r.result));
+		}
+		else
+		{
+			newDataBytes += r.length;
+			highestData = index;
+			firstSent.put(index, r.timeNanos);
+		}
+		emit("timeseq", r, (repeat ? "retransmit," : "data,") + index + "," + describe(r.result));
+
+		//only counts as in flight if it is past the cumulative ACK
+		if(index > highestAck && !outstanding.containsKey(index))
+		{
+			outstanding.put(index, r.length);
+			outstandingBytes += r.length;
+			maxOutstandingBytes = Math.max(maxOutstandingBytes, outstandingBytes);
+			emit("inflight", r, outstandingBytes + "," + outstanding.size());
+		}
+	}
+
+	void replayAck(Record r)
+	{
+		//ACKs that never left the server didn't move anything for the client
+		if((r.result & PacketCapture.RESULT_DROPPED) != 0)
+		{
+			emit("timeseq", r, "ack-dropped," + unwrap(r.seqNum, Math.max(highestData, 0)));
+			return;
+		}
+		acks++;
+		long index = unwrap(r.seqNum, Math.max(highestData, 0));
+		emit("timeseq", r, "ack," + index);
+		if(index <= highestAck)
+			return;
+
+		checkStall(r.timeNanos, false);
+		highestAck = index;
+		progressTime = r.timeNanos;
+		retransmitsSinceProgress = 0;
+
+		//cumulative: everything up to the ACK is no longer in flight
+		Map<Long, Integer> acked = outstanding.headMap(index, true);
+		for(int length : acked.values())
+		{
+			outstandingBytes -= length;
+		}
+		acked.clear();
+		emit("inflight", r, outstandingBytes + "," + outstanding.size());
+	}
+
+	/*
+	 * Report a stall if the ACK hasn't moved for long enough while data was outstanding
+	 */
+	void checkStall(long now, boolean atEnd)
+	{
+		if(outstanding.isEmpty())
+			return;
+		long stalled = now - progressTime;
+		if(stalled < stallNanos)
+			return;
+		stalls++;
+		longestStallNanos = Math.max(longestStallNanos, stalled);
+		if(mode.equals("stalls"))
+			System.out.println(millis(progressTime) + "," + millis(now) + "," + millis(stalled) + ","
+					+ (highestAck + 1) + "," + retransmitsSinceProgress + "," + (atEnd ? "unfinished" : "recovered"));
+	}
+
+	/*
+	 * Turn a 16-bit sequence number into the packet index closest to near
+	 */
+	long unwrap(int seqNum, long near)
+	{
+		return near + (short) (seqNum - (near & 0xFFFF));
+	}
+
+	void emit(String rowMode, Record r, String row)
+	{
+		if(mode.equals(rowMode))
+			System.out.println(millis(r.timeNanos) + "," + row);
+	}
+
+	void printHeader()
+	{
+		if(mode.equals("timeseq"))
+			System.out.println("time_ms,kind,index,result");
+		else if(mode.equals("inflight"))
+			System.out.println("time_ms,inflight_bytes,inflight_packets");
+		else if(mode.equals("retransmits"))
+			System.out.println("time_ms,index,since_first_ms,result");
+		else if(mode.equals("stalls"))
+			System.out.println("start_ms,end_ms,duration_ms,waiting_on,retransmits,outcome");
+		else if(!mode.equals("summary"))
+			throw new IllegalArgumentException("Unknown mode " + mode);
+	}
+
+	void printSummary(long end)
+	{
+		double seconds = end / 1e9;
+		System.out.println((role == PacketCapture.ROLE_CLIENT ? "Client" : "Server") + " capture started at "
+				+ new java.util.Date(startTimeMillis) + ", " + records.size() + " packets over " + millis(end) + " ms");
+		System.out.println("Data packets: " + dataPackets + " (" + dataBytes + " bytes), " + retransmissions + " retransmissions");
+		System.out.println("ACKs: " + acks + ", highest ACKed index " + highestAck);
+		System.out.println("Dropped: " + drops + ", sent corrupt: " + corrupt + ", checksum failures: " + checksumFailures);
+		System.out.println("Peak in flight: " + maxOutstandingBytes + " bytes");
+		if(seconds > 0)
+			System.out.println("Goodput: " + (long) (newDataBytes / seconds / 1024) + " KB/s");
+		System.out.println("Stalls of " + millis(stallNanos) + " ms or more: " + stalls
+				+ ", longest " + millis(longestStallNanos) + " ms");
+	}
+
+	static String describe(int result)
+	{
+		if((result & PacketCapture.RESULT_DROPPED) != 0)
+			return "dropped";
+		if((result & PacketCapture.RESULT_CORRUPT) != 0)
+			return "corrupt";
+		return "ok";
+	}
+
+	static String millis(long nanos)
+	{
+		return String.format("%.3f", nanos / 1e6);
+	}
+
+	/*
+	 * One packet header from the capture
+	 */
+	static class Record
+	{
+		long timeNanos;
+		int direction;
+		int seqNum;
+		int length;
+		int flags;
+		int result;
+	}
+}
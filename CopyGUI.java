@@ -7,6 +7,7 @@ import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 
 import javax.swing.JOptionPane;
+import javax.swing.Timer;
 
 
 //Follows tutorial from https://www3.ntu.edu.sg/home/ehchua/programming/java/j4a_gui.html
@@ -43,6 +44,15 @@ public class CopyGUI extends Frame {
 	Button startServer; //buttons to start server and client
 	Button startClient;
 	
+	//live dashboard, one column each for client and server
+	final int DASHBOARD_PERIOD_MS = 250;
+	final int DASHBOARD_LINES = 4;
+	Label[] clientStats;
+	Label[] serverStats;
+	Timer dashboardTimer;
+	TransferMetrics.Snapshot lastClientSnapshot;
+	TransferMetrics.Snapshot lastServerSnapshot;
+	
 	//client-server logic 
 	UDPClient client;
 	Thread clientThread;
@@ -187,6 +197,48 @@ public class CopyGUI extends Frame {
 			}
 		}
 	}
+	/*
+	 * Sample both agents' metrics and refresh the dashboard.
+	 * Runs on the GUI thread off a timer, so the transfer threads never wait on it
+	 */
+	void updateDashboard()
+	{
+		if(client != null)
+		{
+			TransferMetrics.Snapshot now = client.getMetrics().snapshot();
+			long rate = getRate(lastClientSnapshot, now, lastClientSnapshot == null ? 0 : lastClientSnapshot.bytesAcked, now.bytesAcked);
+			clientStats[0].setText("Client throughput: " + rate / 1024 + " KB/s");
+			clientStats[1].setText("Window: " + now.windowOccupancy + "/" + now.windowLimit 
+					+ " in flight, RTT " + String.format("%.2f", now.srttNanos / 1e6) + " ms");
+			clientStats[2].setText("Retransmits: " + now.retransmissions + " (" + now.timeouts + " timeouts, " 
+					+ now.fastRetransmits + " fast)");
+			clientStats[3].setText("Data dropped " + now.dropsInjected + ", corrupted " + now.corruptionsInjected 
+					+ ", bad ACKs " + now.checksumFailures);
+			lastClientSnapshot = now;
+		}
+		if(server != null)
+		{
+			TransferMetrics.Snapshot now = server.getMetrics().snapshot();
+			long rate = getRate(lastServerSnapshot, now, lastServerSnapshot == null ? 0 : lastServerSnapshot.bytesDelivered, now.bytesDelivered);
+			serverStats[0].setText("Server throughput: " + rate / 1024 + " KB/s");
+			serverStats[1].setText("Reorder buffer: " + now.windowOccupancy + ", advertised window " + now.windowLimit);
+			serverStats[2].setText("ACKs sent: " + now.packetsSent + ", sequence gaps " + now.sequenceGaps);
+			serverStats[3].setText("ACKs dropped " + now.dropsInjected + ", corrupted " + now.corruptionsInjected 
+					+ ", bad data " + now.checksumFailures);
+			lastServerSnapshot = now;
+		}
+	}
+	
+	/*
+	 * Bytes per second between two snapshots
+	 */
+	long getRate(TransferMetrics.Snapshot before, TransferMetrics.Snapshot after, long bytesBefore, long bytesAfter)
+	{
+		if(before == null || after.time <= before.time || bytesAfter < bytesBefore)
+			return 0;
+		return (long) ((bytesAfter - bytesBefore) * 1e9 / (after.time - before.time));
+	}
+	
 	/*
 	 * Setup GUI components
 	 */
@@ -230,6 +282,16 @@ public class CopyGUI extends Frame {
 		startServer = new Button("Start Server");		
 		startClient = new Button("Start Client");
 		
+		clientStats = new Label[DASHBOARD_LINES];
+		serverStats = new Label[DASHBOARD_LINES];
+		for(int i = 0; i < DASHBOARD_LINES; i++)
+		{
+			clientStats[i] = new Label("");
+			serverStats[i] = new Label("");
+		}
+		clientStats[0].setText("Client throughput: -");
+		serverStats[0].setText("Server throughput: -");
+		
 		//set layout
 		setLayout(new GridLayout(0,2));
 		add(portLabel);
@@ -248,6 +310,11 @@ public class CopyGUI extends Frame {
 		add(timeoutField);
 		add(startServer);
 		add(startClient);
+		for(int i = 0; i < DASHBOARD_LINES; i++)
+		{
+			add(clientStats[i]);
+			add(serverStats[i]);
+		}
 		
 		//set listeners for buttons
 		//Anonymous class code used from S.O. https://stackoverflow.com/questions/9569700/java-call-method-via-jbutton
@@ -317,8 +384,16 @@ public class CopyGUI extends Frame {
 				System.exit(0);
 			}
 		});
+		//sample the agents a few times a second for the dashboard
+		dashboardTimer = new Timer(DASHBOARD_PERIOD_MS, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				updateDashboard();
+			}
+		});
+		dashboardTimer.start();
+		
 		setTitle("Image Transfer-er");
-		setSize(800,230);
+		setSize(800,330);
 		setVisible(true);
 	}
 	
@@ -0,0 +1,339 @@
+package network_design_project;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/*
+ * Receives a file pushed by a MulticastSender.
+ *
+ * Segments are written straight to their place in the file in whatever order they come.
+ * A missing segment isn't NAKed right away: each one waits a random backoff first,
+ * and if the sender confirms a NAK for it from another receiver in the meantime this one
+ * stays quiet and just waits for the repair. NAKs that go unanswered are sent again.
+ *
+ * The sender announces itself every HEARTBEAT_NANOS while it is around. Once it has been heard,
+ * if nothing at all comes from it for MAX_SILENT_RETRIES NAK retry periods it has gone, so the
+ * receiver gives up, renames what it has to .incomplete and closes rather than NAKing nobody forever.
+ *
+ * Pass a null group to listen on a plain localhost port, for the sender's fan-out mode.
+ */
+public class MulticastReceiver extends NetworkAgent {
+
+	final int TICK_MILLIS = 10; //how often NAK timers are checked when nothing is arriving
+	final long NAK_BACKOFF_NANOS = 20000000L; //most a missing segment waits before it is NAKed, 20ms
+	final long NAK_RETRY_NANOS = 200000000L; //wait for a repair before asking again, 200ms
+	final int MAX_SILENT_RETRIES = 10; //NAK retry periods without a packet from the sender before giving up on it
+
+	String groupAddress;
+	NetworkInterface networkInterface; //interface to join the group on, null for the system default
+	InetSocketAddress sender; //where NAKs go, learned from the announce
+	Random random;
+
+	//transfer metadata from the announce
+	boolean announced;
+	int sessionId;
+	long fileLength;
+	int segmentSize;
+	int segmentCount;
+
+	RandomAccessFile output;
+	BitSet received;
+	int receivedCount;
+	int highestSeen; //highest segment index known to have been sent, -1 before any
+	TreeMap<Integer, Long> nakDeadlines; //missing segment to the time it should be NAKed
+	BitSet nakSent; //missing segments this receiver has NAKed itself
+	long lastHeardAt; //System.nanoTime() of the last intact packet from the sender, 0 until one comes
+	volatile boolean complete; //every segment is here
+
+	public MulticastReceiver(String imageName, String groupAddress, int port, boolean packetLogging, double corruptionChance, double dropChance)
+	{
+		super("RECEIVER: ", "ReceiverLog.txt", imageName, port, packetLogging, corruptionChance, dropChance);
+		this.groupAddress = groupAddress;
+		random = new Random();
+		highestSeen = -1;
+		nakDeadlines = new TreeMap<Integer, Long>();
+		nakSent = new BitSet();
+	}
+
+	/*
+	 * Join the group on this interface (e.g. "eth0") instead of the one the system picks
+	 */
+	public void setNetworkInterface(String name) throws SocketException
+	{
+		networkInterface = NetworkInterface.getByName(name);
+		if(networkInterface == null)
+			throw new SocketException("No network interface called " + name);
+	}
+
+	@Override
+	int getCaptureRole()
+	{
+		return PacketCapture.ROLE_SERVER;
+	}
+
+	public void receiveImage() throws Exception
+	{
+		MulticastSocket multicastSocket = null;
+		InetSocketAddress group = null;
+		if(groupAddress != null)
+		{
+			group = new InetSocketAddress(InetAddress.getByName(groupAddress), port);
+			multicastSocket = new MulticastSocket(port);
+			multicastSocket.joinGroup(group, networkInterface);
+			myDatagramSocket = multicastSocket;
+		}
+		else
+		{
+			myDatagramSocket = new DatagramSocket(port);
+		}
+		configureSocketBuffers();
+		myDatagramSocket.setSoTimeout(TICK_MILLIS);
+
+		byte[] packet = new byte[PACKET_SIZE];
+		DatagramPacket receiveDatagram = new DatagramPacket(packet, packet.length);
+		boolean senderGone = false;
+		log("Ready for packets");
+		while(!killMe && !complete)
+		{
+			if(lastHeardAt != 0 && System.nanoTime() - lastHeardAt >= MAX_SILENT_RETRIES * NAK_RETRY_NANOS)
+			{
+				log("Nothing from the sender for " + MAX_SILENT_RETRIES * NAK_RETRY_NANOS / 1000000 + " ms, giving up");
+				senderGone = true;
+				break;
+			}
+			boolean gotPacket = false;
+			try{
+				myDatagramSocket.receive(receiveDatagram);
+				gotPacket = true;
+			} catch (SocketTimeoutException e) {
+				//just check the NAK timers
+			} catch (SocketException e) {
+				log("Socket port closed externally");
+				break;
+			}
+
+			if(gotPacket)
+			{
+				byte[] packetData = destructPacket(packet);
+				captureReceived(packet, receiveDatagram.getLength(), packetData != null);
+				if(packetData != null && dropPacket(dropChance))
+				{
+					//loss on the way to this receiver only
+					log("Dropped packet: " + getSequenceNumber(packet));
+					packetData = null;
+				}
+				if(packetData != null)
+				{
+					lastHeardAt = System.nanoTime();
+					complete = handlePacket(getPacketFlags(packet), packetData, receiveDatagram.getSocketAddress());
+				}
+			}
+			sendDueNaks();
+		}
+
+		log("Got " + receivedCount + " of " + segmentCount + " segments, asked for " + metrics.naks.sum()
+				+ " again, " + metrics.naksSuppressed.sum() + " NAKs suppressed");
+		log(corruptedCounter + " checksums corrupted :'(");
+		if(multicastSocket != null && !multicastSocket.isClosed())
+			multicastSocket.leaveGroup(group, networkInterface);
+		if(senderGone)
+		{
+			//the file is full length with holes in it, don't leave it looking finished
+			close();
+			File incomplete = new File(imageName + ".incomplete");
+			incomplete.delete();
+			new File(imageName).renameTo(incomplete);
+			if(!announced)
+				throw new IOException("Transfer incomplete, the sender left before its announce got here");
+			throw new IOException("Transfer incomplete, the sender left with " + (segmentCount - receivedCount) + " segments missing");
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			receiveImage();
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			close();
+		}
+	}
+	
+	@Override
+	public void close()
+	{
+		try {
+			if(output != null)
+				output.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		output = null;
+		super.close();
+	}
+
+	/*
+	 * Act on an intact packet from the sender.
+	 * Returns true once the whole file is here
+	 */
+	boolean handlePacket(int flags, byte[] data, SocketAddress from) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		if((flags & FLAG_SYN) != 0)
+		{
+			if(data.length < ANNOUNCE_SIZE)
+				return false;
+			return readAnnounce(buffer, from);
+		}
+		if(!announced || data.length < 6 || buffer.getInt() != sessionId)
+			return false; //nothing to put it in yet, it will be NAKed once the announce gets here
+		if((flags & FLAG_NAK) != 0)
+		{
+			suppressNaks(buffer);
+			return false;
+		}
+		if(data.length < SEGMENT_HEADER_SIZE)
+			return false;
+		int index = buffer.getInt();
+		if(index < 0 || index >= segmentCount)
+			return false;
+
+		markMissing(index - 1);
+		highestSeen = Math.max(highestSeen, index);
+		if(!received.get(index))
+		{
+			int length = data.length - SEGMENT_HEADER_SIZE;
+			output.seek((long) index * segmentSize);
+			output.write(data, SEGMENT_HEADER_SIZE, length);
+			received.set(index);
+			receivedCount++;
+			metrics.bytesDelivered.add(length);
+			nakDeadlines.remove(index);
+		}
+		return receivedCount == segmentCount;
+	}
+
+	/*
+	 * Open the file the first time the sender announces it.
+	 * After that, announces say how far the sender has got so a lost tail gets NAKed
+	 */
+	boolean readAnnounce(ByteBuffer announce, SocketAddress from) throws IOException
+	{
+		int version = announce.get();
+		int announcedSession = announce.getInt();
+		long announcedLength = announce.getLong();
+		int announcedSegmentSize = announce.getShort() & 0xFFFF;
+		int announcedCount = announce.getInt();
+		int highestSent = announce.getInt();
+
+		if(!announced)
+		{
+			if(version != HANDSHAKE_VERSION || announcedSegmentSize > DATA_SIZE - SEGMENT_HEADER_SIZE)
+				throw new IOException("Unsupported transfer options in announce");
+			announced = true;
+			sessionId = announcedSession;
+			fileLength = announcedLength;
+			segmentSize = announcedSegmentSize;
+			segmentCount = announcedCount;
+			sender = (InetSocketAddress) from;
+			received = new BitSet(segmentCount);
+			output = new RandomAccessFile(imageName, "rw");
+			output.setLength(fileLength);
+			log("Announce: session " + sessionId + ", " + fileLength + " bytes in " + segmentCount + " segments from " + sender);
+		}
+		else if(announcedSession != sessionId)
+		{
+			return false;
+		}
+		markMissing(highestSent);
+		highestSeen = Math.max(highestSeen, highestSent);
+		return receivedCount == segmentCount;
+	}
+
+	/*
+	 * Start NAK timers for segments after the highest seen up to this one.
+	 * The random backoff spreads the receivers out so the first NAK can suppress the rest
+	 */
+	void markMissing(int upTo)
+	{
+		long now = System.nanoTime();
+		for(int i = highestSeen + 1; i <= upTo; i++)
+		{
+			if(!received.get(i))
+			{
+				nakDeadlines.put(i, now + (long) (random.nextDouble() * NAK_BACKOFF_NANOS));
+				metrics.sequenceGaps.increment();
+			}
+		}
+	}
+
+	/*
+	 * The sender confirmed a NAK. Anything in it we are missing is on its way,
+	 * so hold off asking for it
+	 */
+	void suppressNaks(ByteBuffer confirmation)
+	{
+		int count = confirmation.getShort() & 0xFFFF;
+		long retryAt = System.nanoTime() + NAK_RETRY_NANOS;
+		for(int i = 0; i < count && confirmation.remaining() >= 4; i++)
+		{
+			int index = confirmation.getInt();
+			if(nakDeadlines.containsKey(index))
+			{
+				if(!nakSent.get(index))
+					metrics.naksSuppressed.increment();
+				nakDeadlines.put(index, retryAt);
+			}
+		}
+	}
+
+	/*
+	 * NAK every missing segment whose timer has run out, up to MAX_NAK_INDEXES per packet
+	 */
+	void sendDueNaks() throws Exception
+	{
+		if(sender == null || nakDeadlines.isEmpty())
+			return;
+		long now = System.nanoTime();
+		ArrayList<Integer> due = new ArrayList<Integer>();
+		for(Map.Entry<Integer, Long> entry : nakDeadlines.entrySet())
+		{
+			if(entry.getValue() <= now)
+			{
+				due.add(entry.getKey());
+				entry.setValue(now + NAK_RETRY_NANOS);
+				nakSent.set(entry.getKey());
+				if(due.size() == MAX_NAK_INDEXES)
+					break;
+			}
+		}
+		if(due.isEmpty())
+			return;
+
+		ByteBuffer nak = ByteBuffer.allocate(6 + 4 * due.size());
+		nak.putInt(sessionId);
+		nak.putShort((short) due.size());
+		for(int index : due)
+			nak.putInt(index);
+		byte[] nakPacket = addPacketHeader(nak.array(), 0, FLAG_NAK);
+		metrics.naks.add(due.size());
+		log("NAKing " + due.size() + " segments from " + due.get(0));
+		if(dropPacket(dropChance)){
+			captureSent(nakPacket, true, false);
+			log("NAK packet dropped");
+		} else {
+			byte[] wirePacket = corruptPacketMaybe(nakPacket, corruptionChance);
+			captureSent(wirePacket, false, wirePacket != nakPacket);
+			myDatagramSocket.send(new DatagramPacket(wirePacket, wirePacket.length, sender));
+			metrics.packetsSent.increment();
+			metrics.bytesSent.add(nakPacket.length);
+		}
+	}
+}
@@ -0,0 +1,351 @@
+package network_design_project;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Random;
+
+/*
+ * Pushes one file to any number of MulticastReceivers at once.
+ *
+ * Every segment goes out once to the multicast group at a paced rate. There are no ACKs:
+ * receivers NAK the segments they are missing, and the sender multicasts a confirmation
+ * of each NAK so the other receivers missing the same segments hold theirs back.
+ * A segment NAKed again while its repair is still on the way is only repaired once,
+ * so the sender's load stays about the same however many receivers there are.
+ *
+ * An announce packet goes out first and then every HEARTBEAT_NANOS, telling late joiners
+ * what the file is and receivers that lost the tail how far the sender has got.
+ * With no ACKs the sender can't know when everyone is done, so it lingers
+ * serving repairs until it has heard no NAKs for lingerMillis.
+ *
+ * For tests on one machine, setFanOutPorts() sends to a list of localhost ports
+ * instead of a group. That copies every packet once per receiver in the sender,
+ * which is what the network does for real multicast.
+ */
+public class MulticastSender extends NetworkAgent {
+
+	final long DEFAULT_RATE = 10 * 1024 * 1024; //bytes per second
+	final long DEFAULT_LINGER_MILLIS = 2000;
+	final long HEARTBEAT_NANOS = 100000000L; //100ms
+	final long REPAIR_HOLDOFF_NANOS = 50000000L; //NAKs for a segment repaired more recently than this are for the same loss
+
+	String groupAddress;
+	int[] fanOutPorts; //localhost ports to send to instead of the group, null for real multicast
+	ArrayList<InetSocketAddress> destinations;
+	long rate;
+	long lingerMillis;
+	Pacer pacer;
+
+	//transfer state
+	int sessionId;
+	long fileLength;
+	int segmentSize;
+	int segmentCount;
+	volatile int highestSent; //highest segment index sent so far, -1 before any
+	RandomAccessFile file;
+
+	//repairs, shared with NakRunner. Lock on repairQueue
+	LinkedHashSet<Integer> repairQueue; //segments to resend, in the order they were NAKed
+	HashMap<Integer, Long> lastRepairAt; //System.nanoTime() each segment was last queued for repair
+	volatile long lastNakAt;
+
+	public MulticastSender(String imageName, String groupAddress, int port, boolean packetLogging, double corruptionChance, double dropChance)
+	{
+		super("SENDER: ", "SenderLog.txt", imageName, port, packetLogging, corruptionChance, dropChance);
+		this.groupAddress = groupAddress;
+		rate = DEFAULT_RATE;
+		lingerMillis = DEFAULT_LINGER_MILLIS;
+		pacer = new Pacer(2 * PACKET_SIZE);
+		sessionId = new Random().nextInt();
+		highestSent = -1;
+		repairQueue = new LinkedHashSet<Integer>();
+		lastRepairAt = new HashMap<Integer, Long>();
+	}
+
+	@Override
+	int getCaptureRole()
+	{
+		return PacketCapture.ROLE_CLIENT;
+	}
+
+	/*
+	 * Send to these ports on localhost instead of the multicast group
+	 */
+	public void setFanOutPorts(int[] fanOutPorts)
+	{
+		this.fanOutPorts = fanOutPorts;
+	}
+
+	/*
+	 * Rate to send at in bytes per second, repairs included.
+	 * Nothing slows the sender down but NAKs, so this should suit the slowest receiver
+	 */
+	public void setRate(long rate)
+	{
+		this.rate = rate;
+	}
+
+	/*
+	 * How long to keep serving repairs after the last NAK once everything has been sent
+	 */
+	public void setLingerMillis(long lingerMillis)
+	{
+		this.lingerMillis = lingerMillis;
+	}
+
+	public void sendImage() throws Exception
+	{
+		myDatagramSocket = new DatagramSocket();
+		configureSocketBuffers();
+		destinations = new ArrayList<InetSocketAddress>();
+		if(fanOutPorts != null)
+		{
+			for(int p : fanOutPorts)
+				destinations.add(new InetSocketAddress(InetAddress.getByName("localhost"), p));
+		}
+		else
+		{
+			destinations.add(new InetSocketAddress(InetAddress.getByName(groupAddress), port));
+		}
+		pacer.setRate(rate * destinations.size());
+
+		file = new RandomAccessFile(imageName, "r");
+		fileLength = file.length();
+		segmentSize = DATA_SIZE - SEGMENT_HEADER_SIZE;
+		segmentCount = (int) ((fileLength + segmentSize - 1) / segmentSize);
+		log("Sending " + fileLength + " bytes in " + segmentCount + " segments to " + destinations + ", session " + sessionId);
+
+		Thread nakThread = new Thread(new NakRunner()); //thread to take NAKs concurrently
+		nakThread.start();
+
+		sendAnnounce();
+		long lastHeartbeat = System.nanoTime();
+		long doneAt = 0;
+		int next = 0;
+		long startTime = System.currentTimeMillis();
+		while(!killMe)
+		{
+			Integer repair = takeRepair();
+			if(repair != null)
+			{
+				//repairs go ahead of new data so receivers can finish what they have
+				sendSegment(repair);
+				metrics.retransmissions.increment();
+			}
+			else if(next < segmentCount)
+			{
+				sendSegment(next);
+				highestSent = next;
+				next++;
+				if(next == segmentCount)
+					doneAt = System.nanoTime();
+			}
+			else
+			{
+				if(doneAt == 0)
+					doneAt = System.nanoTime(); //nothing to send at all
+				if(System.nanoTime() - Math.max(doneAt, lastNakAt) >= lingerMillis * 1000000L)
+				{
+					log("No NAKs for " + lingerMillis + " ms, done");
+					break;
+				}
+				waitForRepair(HEARTBEAT_NANOS);
+			}
+
+			if(System.nanoTime() - lastHeartbeat >= HEARTBEAT_NANOS)
+			{
+				sendAnnounce();
+				lastHeartbeat = System.nanoTime();
+			}
+		}
+
+		System.out.println("Time : " + (System.currentTimeMillis() - startTime));
+		log(metrics.retransmissions.sum() + " repairs sent for " + metrics.naks.sum() + " NAKed segments, "
+				+ metrics.naksSuppressed.sum() + " NAKs suppressed");
+		close(); //closes the socket, which stops NakRunner
+		nakThread.join();
+	}
+
+	@Override
+	public void run() {
+		try {
+			sendImage();
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			close();
+		}
+	}
+	
+	@Override
+	public void close()
+	{
+		try {
+			if(file != null)
+				file.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		file = null;
+		super.close();
+	}
+
+	/*
+	 * Announce the file and how far the sender has got
+	 */
+	void sendAnnounce() throws Exception
+	{
+		ByteBuffer announce = ByteBuffer.allocate(ANNOUNCE_SIZE);
+		announce.put((byte) HANDSHAKE_VERSION);
+		announce.putInt(sessionId);
+		announce.putLong(fileLength);
+		announce.putShort((short) segmentSize);
+		announce.putInt(segmentCount);
+		announce.putInt(highestSent);
+		multicast(addPacketHeader(announce.array(), 0, FLAG_SYN), true);
+	}
+
+	/*
+	 * Read a segment from the file and send it to the group
+	 */
+	void sendSegment(int index) throws Exception
+	{
+		long offset = (long) index * segmentSize;
+		int length = (int) Math.min(segmentSize, fileLength - offset);
+		ByteBuffer payload = ByteBuffer.allocate(SEGMENT_HEADER_SIZE + length);
+		payload.putInt(sessionId);
+		payload.putInt(index);
+		file.seek(offset);
+		file.readFully(payload.array(), SEGMENT_HEADER_SIZE, length);
+		multicast(addPacketHeader(payload.array(), index & 0xFFFF, 0), true);
+	}
+
+	/*
+	 * Send a packet to every destination unless it gets dropped.
+	 * Only data is paced, NAK confirmations should get out right away
+	 */
+	void multicast(byte[] packet, boolean paced) throws Exception
+	{
+		if(dropPacket(dropChance))
+		{
+			captureSent(packet, true, false);
+			log("Dropped packet: " + getSequenceNumber(packet));
+			return;
+		}
+		byte[] wirePacket = corruptPacketMaybe(packet, corruptionChance);
+		captureSent(wirePacket, false, wirePacket != packet);
+		for(InetSocketAddress destination : destinations)
+		{
+			if(paced)
+				pacer.pace(packet.length);
+			myDatagramSocket.send(new DatagramPacket(wirePacket, wirePacket.length, destination));
+		}
+		metrics.packetsSent.increment();
+		metrics.bytesSent.add(packet.length);
+	}
+
+	/*
+	 * Returns the next segment waiting for repair, or null if there are none
+	 */
+	Integer takeRepair()
+	{
+		synchronized(repairQueue)
+		{
+			Iterator<Integer> it = repairQueue.iterator();
+			if(!it.hasNext())
+				return null;
+			Integer index = it.next();
+			it.remove();
+			return index;
+		}
+	}
+
+	void waitForRepair(long nanos) throws InterruptedException
+	{
+		synchronized(repairQueue)
+		{
+			if(repairQueue.isEmpty())
+				repairQueue.wait(nanos / 1000000L);
+		}
+	}
+
+	/*
+	 * Queue repairs for the NAKed segments that haven't just been repaired,
+	 * and tell the group which ones are coming
+	 */
+	void handleNak(ByteBuffer nak) throws Exception
+	{
+		int count = nak.getShort() & 0xFFFF;
+		ArrayList<Integer> confirmed = new ArrayList<Integer>();
+		long now = System.nanoTime();
+		lastNakAt = now;
+		synchronized(repairQueue)
+		{
+			for(int i = 0; i < count && nak.remaining() >= 4; i++)
+			{
+				int index = nak.getInt();
+				if(index < 0 || index > highestSent)
+					continue;
+				metrics.naks.increment();
+				Long last = lastRepairAt.get(index);
+				if(repairQueue.contains(index) || (last != null && now - last < REPAIR_HOLDOFF_NANOS))
+				{
+					//someone else already asked for this one
+					metrics.naksSuppressed.increment();
+					continue;
+				}
+				lastRepairAt.put(index, now);
+				repairQueue.add(index);
+				confirmed.add(index);
+			}
+			repairQueue.notifyAll();
+		}
+		if(confirmed.isEmpty())
+			return;
+
+		log("Repairing " + confirmed.size() + " segments from " + confirmed.get(0));
+		ByteBuffer confirmation = ByteBuffer.allocate(6 + 4 * confirmed.size());
+		confirmation.putInt(sessionId);
+		confirmation.putShort((short) confirmed.size());
+		for(int index : confirmed)
+			confirmation.putInt(index);
+		multicast(addPacketHeader(confirmation.array(), 0, FLAG_NAK), false);
+	}
+
+	class NakRunner implements Runnable
+	{
+		@Override
+		public void run() {
+			byte[] receivePacket = new byte[PACKET_SIZE];
+			DatagramPacket receiveDatagram = new DatagramPacket(receivePacket, receivePacket.length);
+			while(!killMe)
+			{
+				try{
+					myDatagramSocket.receive(receiveDatagram);
+				} catch (IOException e) {
+					//socket closed, the transfer is over
+					return;
+				}
+
+				byte[] nakData = destructPacket(receivePacket);
+				captureReceived(receivePacket, receiveDatagram.getLength(), nakData != null);
+				if(nakData == null || (getPacketFlags(receivePacket) & FLAG_NAK) == 0 || nakData.length < 6)
+					continue;
+				ByteBuffer nak = ByteBuffer.wrap(nakData);
+				if(nak.getInt() != sessionId)
+					continue;
+				try {
+					handleNak(nak);
+				} catch (Exception e) {
+					log("issues confirming a NAK");
+					e.printStackTrace();
+				}
+			}
+		}
+	} //\NakRunner
+}
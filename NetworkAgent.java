@@ -5,23 +5,66 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.SocketException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.Random;
 
 /*
  * Superclass for UDPClient and UDPServer
  * 
  * Holds functions that we use in both classes
  */
-public abstract class NetworkAgent implements Runnable {
+public abstract class NetworkAgent implements Runnable, AutoCloseable {
 	
 	
 	//////////Constants		 
 	
 	
-	final int HEADER_SIZE = 6;
+	//header layout: seq(2) checksum(2) length(2) flags(1)
+	final int HEADER_SIZE = 7;
 	final int PACKET_SIZE = 1024;
 	final int DATA_SIZE = PACKET_SIZE - HEADER_SIZE;
 	
+	//bits for the flags field of the header
+	final int FLAG_COMPRESSED = 0x01; //payload is a deflated block of file data
+	final int FLAG_SYN = 0x02; //payload is the handshake
+	final int FLAG_DIGEST = 0x04; //payload is the TreeHasher digest of everything sent, last packet of the transfer
+	final int FLAG_NAK = 0x08; //multicast repair request from a receiver, or the sender confirming one
+	final int FLAG_FIN = 0x10; //client is done sending, its ACK is the server's FIN-ACK
+	
+	//handshake layout: version(1) sessionId(4) fileLength(8) segmentSize(2) window(2) checksumType(1) options(1)
+	final int HANDSHAKE_SIZE = 19;
+	final int HANDSHAKE_VERSION = 1;
+	final int CHECKSUM_ONES_COMPLEMENT = 0; //the 16-bit checksum over header and payload in calculatePacketChecksum()
+	final int OPTION_COMPRESSION = 0x01;
+	final int OPTION_BATCH = 0x02; //stream is many files framed by BatchInputStream
+	
+	//ACK data layout: advertisedWindow(2) sessionId(4) verifyStatus(1)
+	final int ACK_DATA_SIZE = 7;
+	final int VERIFY_PENDING = 0;
+	final int VERIFY_OK = 1;
+	final int VERIFY_FAILED = 2;
+	
+	//multicast mode layouts
+	//segment: sessionId(4) index(4) data
+	//announce: version(1) sessionId(4) fileLength(8) segmentSize(2) segmentCount(4) highestSent(4)
+	//NAK and NAK confirmation: sessionId(4) count(2) index(4) * count
+	final int SEGMENT_HEADER_SIZE = 8;
+	final int ANNOUNCE_SIZE = 23;
+	final int MAX_NAK_INDEXES = 64;
+	
+	//raw bytes the client deflates at a time. A compressed block is sent as
+	//compressedLength(2) then the deflated bytes, cut into as many segments as it takes
+	final int COMPRESSION_BLOCK_SIZE = 8 * DATA_SIZE;
+	final int COMPRESSED_HEADER_SIZE = 2;
+	
+	//limits and period for socket buffer auto-tuning
+	final int MIN_SOCKET_BUFFER = 64 * 1024;
+	final int MAX_SOCKET_BUFFER = 8 * 1024 * 1024;
+	final long TUNE_INTERVAL_NANOS = 100000000L; //100ms
+	
 	
 	//////////instance variables
 	
@@ -31,10 +74,15 @@ public abstract class NetworkAgent implements Runnable {
 	int corruptedCounter;
 	double corruptionChance;
 	double dropChance;
+	double reorderChance; //percent of packets held back to go out after the next one
+	Random impairmentRandom; //rolls the dice for all three, seed it to repeat a run
+	byte[] heldPacket; //held back by reorderChance, null when nothing is
+	InetAddress heldAddress;
 	boolean packetLogging;
 	String logPrefix;
 	FileWriter out;
 	volatile boolean killMe; //set true to exit as fast as possible
+	boolean closed;
 	DatagramSocket myDatagramSocket;
 	
 	//GBN/SR/TCP variables
@@ -43,6 +91,16 @@ public abstract class NetworkAgent implements Runnable {
 	int windowBase; //sequence number at the base of the window
 	int nextSeqNum; //sequence number of the next packet in the window to get handled.
 	
+	//socket buffer sizing
+	int socketBufferSize; //requested SO_RCVBUF/SO_SNDBUF in bytes, 0 leaves the OS default
+	boolean autoTuneBuffers; //grow the buffers to fit the measured bandwidth-delay product
+	long tuneIntervalStart;
+	long tuneIntervalBytes;
+	
+	TransferMetrics metrics; //live counters for the GUI dashboard
+	PacketCipher packetCipher; //seals payloads with AES-GCM when a pre-shared key is set, null for plaintext
+	PacketCapture capture; //binary record of every packet header, null when not capturing
+	
 	//////////shared functions
 	
 	NetworkAgent(String logPrefix, String logFn, String imageName, int port, 
@@ -55,7 +113,9 @@ public abstract class NetworkAgent implements Runnable {
 		this.corruptionChance = corruptionChance;
 		this.dropChance = dropChance;
 		
+		impairmentRandom = new Random();
 		corruptedCounter = 0;
+		metrics = new TransferMetrics();
 		
 		killMe = false;
 
@@ -90,17 +150,24 @@ public abstract class NetworkAgent implements Runnable {
 	}
 	
 	/*
-	 * Called automatically whenever the object is destroyed
+	 * Release the socket, capture and log file as soon as the agent is done with them.
+	 * Safe to call more than once
 	 */
 	@Override
-	protected void finalize()
+	public synchronized void close()
 	{
+		if(closed)
+			return;
+		closed = true;
 		if(myDatagramSocket != null && !myDatagramSocket.isClosed())
 			myDatagramSocket.close();
+		if(capture != null)
+			capture.close();
 		
 		if(packetLogging)
 		{
 			try {
+				packetLogging = false;
 				out.close();
 			} catch (IOException e) {
 				e.printStackTrace();
@@ -109,6 +176,148 @@ public abstract class NetworkAgent implements Runnable {
 		System.out.println("Finished " + logPrefix);
 	}
 	
+	/*
+	 * Returns the agent's live counters. Safe to sample from any thread
+	 */
+	public TransferMetrics getMetrics()
+	{
+		return metrics;
+	}
+	
+	/*
+	 * Set SO_RCVBUF and SO_SNDBUF for the agent's socket, in bytes
+	 */
+	public void setSocketBufferSize(int socketBufferSize)
+	{
+		this.socketBufferSize = socketBufferSize;
+	}
+	
+	/*
+	 * Let the agent grow its socket buffers from the bandwidth-delay product it measures
+	 */
+	public void setAutoTuneBuffers(boolean autoTuneBuffers)
+	{
+		this.autoTuneBuffers = autoTuneBuffers;
+	}
+	
+	/*
+	 * Hold this percent of outgoing packets back and send each one after the packet that follows it
+	 */
+	public void setReorderChance(double reorderChance)
+	{
+		this.reorderChance = reorderChance;
+	}
+	
+	/*
+	 * Seed the dice for drops, corruption and reordering, so the same impairments can be rolled again
+	 */
+	public void setImpairmentSeed(long seed)
+	{
+		impairmentRandom = new Random(seed);
+	}
+	
+	/*
+	 * Turn on authenticated encryption of every payload with a pre-shared AES key (16, 24 or 32 bytes).
+	 * Both ends need the same key. Each transfer seals with its own key derived from it
+	 */
+	public void setEncryptionKey(byte[] key) throws GeneralSecurityException
+	{
+		packetCipher = new PacketCipher(key);
+	}
+	
+	/*
+	 * Record every packet header sent and received to a binary file for CaptureAnalyzer
+	 */
+	public void setCaptureFile(String fileName) throws IOException
+	{
+		capture = new PacketCapture(fileName, getCaptureRole());
+	}
+	
+	/*
+	 * PacketCapture.ROLE_CLIENT or PacketCapture.ROLE_SERVER
+	 */
+	abstract int getCaptureRole();
+	
+	/*
+	 * Capture a packet on its way out, or that dropChance threw away.
+	 * corrupted is whether corruptPacketMaybe() damaged it, which the caller already knows
+	 * from getting a different array back, so nothing has to be checksummed again here
+	 */
+	void captureSent(byte[] packet, boolean dropped, boolean corrupted)
+	{
+		if(capture == null)
+			return;
+		int result = dropped ? PacketCapture.RESULT_DROPPED : 0;
+		if(corrupted)
+			result |= PacketCapture.RESULT_CORRUPT;
+		capture.record(PacketCapture.DIRECTION_SENT, getSequenceNumber(packet), getWireLength(packet), getPacketFlags(packet), result);
+	}
+	
+	/*
+	 * Capture a packet that just came in, length bytes long
+	 */
+	void captureReceived(byte[] packet, int length, boolean checksumOk)
+	{
+		if(capture == null)
+			return;
+		int result = checksumOk ? 0 : PacketCapture.RESULT_CHECKSUM_FAILED;
+		capture.record(PacketCapture.DIRECTION_RECEIVED, getSequenceNumber(packet), length, getPacketFlags(packet), result);
+	}
+	
+	/*
+	 * Apply the requested socket buffer sizes and log what the OS actually gave us
+	 */
+	void configureSocketBuffers() throws SocketException
+	{
+		if(socketBufferSize > 0)
+		{
+			myDatagramSocket.setReceiveBufferSize(socketBufferSize);
+			myDatagramSocket.setSendBufferSize(socketBufferSize);
+		}
+		logSocketBuffers();
+		tuneIntervalStart = System.nanoTime();
+		tuneIntervalBytes = 0;
+	}
+	
+	void logSocketBuffers() throws SocketException
+	{
+		log("Socket buffers: receive " + myDatagramSocket.getReceiveBufferSize() 
+				+ " bytes, send " + myDatagramSocket.getSendBufferSize() + " bytes");
+	}
+	
+	/*
+	 * Count bytes that made it across for auto-tuning.
+	 * Once per interval, works out the delivery rate and grows the socket buffers
+	 * to twice the bandwidth-delay product if they are smaller than that.
+	 */
+	void countBytesForTuning(int bytes, long rttNanos)
+	{
+		if(!autoTuneBuffers)
+			return;
+		tuneIntervalBytes += bytes;
+		long now = System.nanoTime();
+		long elapsed = now - tuneIntervalStart;
+		if(elapsed < TUNE_INTERVAL_NANOS || rttNanos <= 0)
+			return;
+		
+		long bdp = tuneIntervalBytes * rttNanos / elapsed;
+		int wanted = (int) Math.min(MAX_SOCKET_BUFFER, Math.max(MIN_SOCKET_BUFFER, 2 * bdp));
+		tuneIntervalStart = now;
+		tuneIntervalBytes = 0;
+		try {
+			if(wanted > myDatagramSocket.getReceiveBufferSize() || wanted > myDatagramSocket.getSendBufferSize())
+			{
+				log("Auto-tuning socket buffers to " + wanted + " bytes (BDP " + bdp + " bytes)");
+				myDatagramSocket.setReceiveBufferSize(Math.max(wanted, myDatagramSocket.getReceiveBufferSize()));
+				myDatagramSocket.setSendBufferSize(Math.max(wanted, myDatagramSocket.getSendBufferSize()));
+				logSocketBuffers();
+			}
+		} catch (SocketException e) {
+			log("Couldn't resize socket buffers. Auto-tuning disabled");
+			autoTuneBuffers = false;
+		}
+	}
+	
 	/*
 	 * Returns the packetLength field of the packet header
 	 */
@@ -120,6 +329,23 @@ public abstract class NetworkAgent implements Runnable {
 		return packetLength;
 	}
 		
+	/*
+	 * Returns how many bytes of the array are the packet: the header plus its packetLength.
+	 * Pooled packet buffers are longer than that
+	 */
+	int getWireLength(byte[] packet)
+	{
+		return HEADER_SIZE + getPacketLength(packet);
+	}
+		
+	/*
+	 * Returns the flags field of the packet header
+	 */
+	int getPacketFlags(byte[] packet)
+	{
+		return packet[6] & 0xFF;
+	}
+	
 	/*
 	 * Tell the server to stop listening to the port and die asap
 	 */
@@ -135,17 +361,18 @@ public abstract class NetworkAgent implements Runnable {
 	 */
 	int getSequenceNumber(byte[] packet)
 	{
-		return packet[1] + (packet[0] << 8);
+		return (packet[1] & 0xFF) + ((packet[0] & 0xFF) << 8);
 	}	
 	
 	/*
 	 * Given a packet, assuming its checksum is good,
-	 * return the next sequence number to expect from the client
+	 * return the next sequence number to expect from the client.
+	 * Sequence numbers are 16 bits and wrap around.
 	 */
 	int getIncrementedSequenceNumber(byte[] packet)
 	{
 		int seq = getSequenceNumber(packet);
-		return seq++;
+		return (seq + 1) & 0xFFFF;
 	}
 	
 	/*
@@ -153,16 +380,30 @@ public abstract class NetworkAgent implements Runnable {
 	 * If invertFlag is true, do the one's compliment over the checksum
 	 */
 	byte[] calculateChecksum( byte[] readData, boolean invertFlag ){
-		byte[] checksum = new byte[2];
-		checksum[0] = 0;
-		checksum[1] = 0;
-		
-		int checksum16bit = 0;	
-		for( int i = 0; i < readData.length; i++){
+		return finishChecksum(addToChecksum(0, readData, 0, readData.length), invertFlag);
+	}
+	
+	/*
+	 * Calculates the checksum of a packet as it goes on the wire: the header, with the checksum
+	 * field counted as 0, then the payload. A flipped bit in the sequence number, length or flags
+	 * is caught the same as one in the data
+	 */
+	byte[] calculatePacketChecksum( byte[] packet, boolean invertFlag ){
+		int checksum16bit = addToChecksum(0, packet, 0, 2); //sequence number
+		checksum16bit = addToChecksum(checksum16bit, packet, 4, getWireLength(packet)); //length, flags and payload
+		return finishChecksum(checksum16bit, invertFlag);
+	}
+	
+	/*
+	 * Add bytes from to end of the array to a running checksum, 16 bits at a time.
+	 * An odd byte at the end is padded with 0
+	 */
+	int addToChecksum( int checksum16bit, byte[] readData, int from, int to ){
+		for( int i = from; i < to; i++){
 			int temp = 0;
 			temp = readData[i] & 0xFF;
 			temp = temp << 8;
-			if(i < readData.length - 1){
+			if(i < to - 1){
 				temp = temp | (readData[++i] & 0xFF);
 			} else {
 				temp = temp | 0 & 0xFF;
@@ -172,6 +413,11 @@ public abstract class NetworkAgent implements Runnable {
 				checksum16bit = checksum16bit - 65534;
 			}
 		}
+		return checksum16bit;
+	}
+	
+	byte[] finishChecksum( int checksum16bit, boolean invertFlag ){
+		byte[] checksum = new byte[2];
 		if(invertFlag){
 			checksum16bit = ~checksum16bit;
 		}
@@ -187,30 +433,40 @@ public abstract class NetworkAgent implements Runnable {
 	 * make a new packet
 	 */
 	byte[] addPacketHeader(byte[] readData, int ackNumber){
+		return addPacketHeader(readData, ackNumber, 0);
+	}
+	
+	/*
+	 * Given packet data, an ACK number and header flags,
+	 * make a new packet
+	 */
+	byte[] addPacketHeader(byte[] readData, int ackNumber, int flags){
+		return addPacketHeader(new byte[readData.length + HEADER_SIZE], readData, ackNumber, flags);
+	}
+	
+	/*
+	 * Same, but builds the packet in a buffer the caller already has, which can be longer than the packet.
+	 * Packets are built clean. Corruption is only ever applied to a copy on its way out, see corruptPacketMaybe()
+	 */
+	byte[] addPacketHeader(byte[] packet, byte[] readData, int ackNumber, int flags){
 		int packetSize = readData.length;
-		byte[] packet = new byte[packetSize + HEADER_SIZE];
-		
-		
-		byte[] maybeCorruptedData = corruptDataMaybe(readData, corruptionChance);
-		//copies maybe-corrupted into the new packet
-		for ( int i = 0; i < packetSize; i++){
-			packet[i + HEADER_SIZE] = maybeCorruptedData[i];
-		}
+		System.arraycopy(readData, 0, packet, HEADER_SIZE, packetSize);
 		
 		//puts appropriate fields into the header.
-		//calculates the checksum based off of the definitely-not-corrupted readData
-		byte[] checksum = new byte[2];
-		checksum = calculateChecksum( readData , true );
-		packet[2] = checksum[0];
-		packet[3] = checksum[1];
-		
 		packet[0] = (byte) ((ackNumber >> 8) & 0xFF); //msbFirst
 		packet[1] = (byte) (ackNumber & 0xFF);
 		
-		assert ( packetSize > PACKET_SIZE );
+		assert packetSize <= DATA_SIZE : "payload of " + packetSize + " bytes doesn't fit in a packet";
 		packet[4] = (byte) ((packetSize >> 8) & 0xFF); //msbFirst
 		packet[5] = (byte) (packetSize & 0xFF);
 		
+		packet[6] = (byte) (flags & 0xFF);
+		
+		//checksum goes in last, since it covers the rest of the header
+		byte[] checksum = calculatePacketChecksum( packet , true );
+		packet[2] = checksum[0];
+		packet[3] = checksum[1];
+		
 		return packet;
 	}
 	
@@ -218,60 +474,101 @@ public abstract class NetworkAgent implements Runnable {
 	 * Send a packet
 	 */
 	void transmitPacket(byte[] packet, DatagramSocket socket, InetAddress IPAddress ) throws Exception{
-		DatagramPacket sendPacket = new DatagramPacket(packet, packet.length, IPAddress, port);
+		DatagramPacket sendPacket = new DatagramPacket(packet, getWireLength(packet), IPAddress, port);
 		socket.send(sendPacket);
 	}
 	void transmitPacket(byte[] packet, DatagramSocket socket ) throws Exception{
 		InetAddress IPAddress = InetAddress.getByName("localhost");		
-		DatagramPacket sendPacket = new DatagramPacket(packet, packet.length, IPAddress, port);
+		DatagramPacket sendPacket = new DatagramPacket(packet, getWireLength(packet), IPAddress, port);
 		socket.send(sendPacket);
 	}
 	
+	/*
+	 * Send a packet that got past dropPacket() and corruptPacketMaybe(), reordering it reorderChance% of the time:
+	 * it is held back and goes out right after the next packet instead, to the address it was meant for.
+	 * A held packet with nothing sent after it never goes out, which the protocol recovers from like a drop.
+	 * Synchronized since the client sends from its receive thread as well as its sending one
+	 */
+	synchronized void transmitMaybeReordered(byte[] packet, InetAddress IPAddress) throws Exception
+	{
+		if(heldPacket == null && reorderChance > 0 && impairmentRandom.nextDouble()*100 < reorderChance)
+		{
+			metrics.reordersInjected.increment();
+			heldPacket = packet;
+			heldAddress = IPAddress;
+			log("Holding packet " + getSequenceNumber(packet) + " back to send after the next one");
+			return;
+		}
+		transmitPacket(packet, myDatagramSocket, IPAddress);
+		if(heldPacket != null)
+		{
+			transmitPacket(heldPacket, myDatagramSocket, heldAddress);
+			heldPacket = null;
+			heldAddress = null;
+		}
+	}
+	
 	/*
 	 * Extract the data from a packet.
 	 * Also compute its checksum and calculate if it is bad.
-	 * Returns null if the checksum is bad
+	 * Returns null if the checksum is bad, or the length field runs past the end of the array
 	 */
 	byte[] destructPacket (byte[] packet){
 		
-		byte[] checksum = new byte[2];
 		int packetLength = getPacketLength( packet);
 		
-		byte[] data = new byte[packetLength];	
-		for( int i = 0; i < packetLength; i++){
-			data[i] = packet[ i + HEADER_SIZE ];
-		}
-		
-		checksum = calculateChecksum( data, false );
-		if( (~(packet[2] ^ checksum[0]) == 0) && (~(packet[3] ^ checksum[1]) == 0) ){
+		if( getWireLength(packet) <= packet.length && checksumMatches(packet) ){
+			byte[] data = new byte[packetLength];	
+			for( int i = 0; i < packetLength; i++){
+				data[i] = packet[ i + HEADER_SIZE ];
+			}
 			return data;
 		} else {
 			corruptedCounter++;
+			metrics.checksumFailures.increment();
+			ProtocolEvents.ChecksumFailure event = new ProtocolEvents.ChecksumFailure();
+			if(event.isEnabled())
+			{
+				event.agent = logPrefix;
+				event.seqNum = getSequenceNumber(packet);
+				event.bytes = packetLength;
+				event.commit();
+			}
 			return null;
 		}	
 	}	
 	
+	boolean checksumMatches(byte[] packet)
+	{
+		byte[] checksum = calculatePacketChecksum( packet, false );
+		return (~(packet[2] ^ checksum[0]) == 0) && (~(packet[3] ^ checksum[1]) == 0);
+	}
+	
 	/*
-	 * Rolls the dice and corrupts the data (adds a random bit flip) percentChance% of the time
-	 * Returns the a new copy of data that might have a bit error
+	 * Rolls the dice and corrupts the packet's data (adds a random bit flip) percentChance% of the time.
+	 * Call right before transmitting. Returns the packet itself, or a corrupted copy of it,
+	 * so a packet kept for retransmission is never damaged and only costs a copy when it is corrupted.
 	 */
-	byte[] corruptDataMaybe(byte[] data, double percentChance){
-		byte[] newData = data.clone();
-		if( Math.random()*100 < percentChance ){
+	byte[] corruptPacketMaybe(byte[] packet, double percentChance){
+		int packetLength = getPacketLength(packet);
+		if( packetLength > 0 && impairmentRandom.nextDouble()*100 < percentChance ){
 			log("Corrupting this packet");
+			metrics.corruptionsInjected.increment();
+			byte[] newPacket = Arrays.copyOf(packet, getWireLength(packet));
 			//find a random bit to flip
-			int index = (int) Math.floor(Math.random() * newData.length);
-			int bit = (int) Math.floor(Math.random() * 8.0);
+			int index = HEADER_SIZE + impairmentRandom.nextInt(packetLength);
+			int bit = impairmentRandom.nextInt(8);
 			//actually flips the bit
-			newData[index] = (byte) (newData[index] ^ (1 << bit));
-			return newData;
+			newPacket[index] = (byte) (newPacket[index] ^ (1 << bit));
+			return newPacket;
 		} else {
-			return newData;
+			return packet;
 		}
 	}
 	
 	boolean dropPacket(double percentChance){
-		if(Math.random()*100 < percentChance){
+		if(impairmentRandom.nextDouble()*100 < percentChance){
+			metrics.dropsInjected.increment();
 			return true;
 		} else {
 			return false;
@@ -0,0 +1,84 @@
+package network_design_project;
+
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Token bucket that spaces packet transmissions out at a target rate
+ * instead of letting a whole window go out back to back.
+ *
+ * Tokens are bytes. They refill continuously from System.nanoTime(),
+ * and the bucket holds a couple of packets so small bursts don't wait.
+ */
+class Pacer {
+
+	//waits shorter than this spin instead of parking, since parking overshoots by about this much
+	final long SPIN_THRESHOLD_NANOS = 50000;
+
+	double bytesPerNano; //pacing rate, 0 means don't pace
+	double bucketSize; //most tokens that can pile up
+	double tokens;
+	long lastRefill;
+
+	Pacer(int burstBytes)
+	{
+		bucketSize = burstBytes;
+		tokens = burstBytes;
+		bytesPerNano = 0;
+		lastRefill = System.nanoTime();
+	}
+
+	/*
+	 * Set the target rate in bytes per second. 0 or less turns pacing off
+	 */
+	synchronized void setRate(double bytesPerSecond)
+	{
+		refill(System.nanoTime());
+		bytesPerNano = bytesPerSecond > 0 ? bytesPerSecond / 1e9 : 0;
+	}
+
+	/*
+	 * Returns the target rate in bytes per second
+	 */
+	synchronized double getRate()
+	{
+		return bytesPerNano * 1e9;
+	}
+
+	/*
+	 * Block until there are enough tokens to send this many bytes, then spend them.
+	 * The tokens are checked and taken under the monitor but the wait happens outside it,
+	 * so setRate() never waits behind a pacing sleep. After each wait the check is done again
+	 * at the current rate, in case it went up while this caller was parked
+	 */
+	void pace(int bytes)
+	{
+		while(true)
+		{
+			long waitNanos;
+			synchronized(this)
+			{
+				if(bytesPerNano <= 0)
+					return;
+				refill(System.nanoTime());
+				//a send bigger than the bucket goes once it is full and leaves it in debt
+				double needed = Math.min(bytes, bucketSize);
+				if(tokens >= needed)
+				{
+					tokens -= bytes;
+					return;
+				}
+				waitNanos = (long) ((needed - tokens) / bytesPerNano);
+			}
+			if(waitNanos > SPIN_THRESHOLD_NANOS)
+				LockSupport.parkNanos(waitNanos - SPIN_THRESHOLD_NANOS);
+			else
+				Thread.onSpinWait();
+		}
+	}
+
+	void refill(long now)
+	{
+		tokens = Math.min(bucketSize, tokens + (now - lastRefill) * bytesPerNano);
+		lastRefill = now;
+	}
+}
@@ -0,0 +1,80 @@
+package network_design_project;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/*
+ * Binary record of every packet header an agent sends or receives, for CaptureAnalyzer.
+ *
+ * File layout: magic(4) version(1) role(1) startTimeMillis(8), then one record per packet:
+ * timeNanos(8) direction(1) seq(2) length(2) flags(1) result(1)
+ * where timeNanos is since the capture started, length is the whole datagram
+ * and result is a mix of the RESULT_ bits.
+ *
+ * Records go through a buffered stream, so capturing costs a few field writes per packet.
+ * Both the sending thread and the receiver thread record, so record() is synchronized.
+ */
+class PacketCapture {
+
+	static final int MAGIC = 0x47424E43; //"GBNC"
+	static final int VERSION = 1;
+	static final int RECORD_SIZE = 15;
+
+	//which end made the capture
+	static final int ROLE_CLIENT = 0;
+	static final int ROLE_SERVER = 1;
+
+	static final int DIRECTION_SENT = 0;
+	static final int DIRECTION_RECEIVED = 1;
+
+	//bits for the result field
+	static final int RESULT_DROPPED = 0x01; //thrown away by dropChance instead of sent
+	static final int RESULT_CORRUPT = 0x02; //went out with a checksum that doesn't match
+	static final int RESULT_CHECKSUM_FAILED = 0x04; //arrived with a checksum that doesn't match
+
+	DataOutputStream out;
+	long startNanos;
+	boolean failed;
+
+	PacketCapture(String fileName, int role) throws IOException
+	{
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 64 * 1024));
+		startNanos = System.nanoTime();
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+		out.writeByte(role);
+		out.writeLong(System.currentTimeMillis());
+	}
+
+	/*
+	 * Write one record. A capture that can't be written just stops,
+	 * it never takes the transfer down with it
+	 */
+	synchronized void record(int direction, int seqNum, int length, int flags, int result)
+	{
+		if(failed)
+			return;
+		try {
+			out.writeLong(System.nanoTime() - startNanos);
+			out.writeByte(direction);
+			out.writeShort(seqNum);
+			out.writeShort(length);
+			out.writeByte(flags);
+			out.writeByte(result);
+		} catch (IOException e) {
+			failed = true;
+		}
+	}
+
+	synchronized void close()
+	{
+		try {
+			out.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		failed = true;
+	}
+}
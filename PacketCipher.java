@@ -0,0 +1,185 @@
+package network_design_project;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * AES-GCM sealing of packet payloads with keys derived from a pre-shared key.
+ *
+ * Nothing is ever sealed with the pre-shared key itself. The client picks a random salt
+ * for each session and sends it in the clear in the SYN, and the SYN alone is sealed with
+ * the handshake key, HKDF-SHA256 of the pre-shared key and that salt. The server answers
+ * with a random nonce of its own in the clear in every ACK, and everything after the SYN,
+ * both ways, is sealed with the session key: HKDF-SHA256 of the pre-shared key and salt
+ * plus server nonce. Because the server has a say in the key, a recorded session replayed
+ * to a new server gets no further than its SYN, which only starts a session the replayer
+ * can't seal anything for.
+ *
+ * The nonce is sessionId(4) direction(4) packetIndex(4). Packet indexes don't repeat within
+ * a session and the keys don't repeat across sessions, so neither does a key and nonce pair,
+ * even when both ends' counters start from 0 again. The sequence number and flags from
+ * the header are authenticated along with the payload, so they can't be changed either.
+ *
+ * Cipher.getInstance() is slow, so each PacketCipher keeps one Cipher for sealing and one
+ * for opening and only re-inits them per packet. Each of those should only be used by one thread.
+ */
+class PacketCipher {
+
+	static final int TAG_SIZE = 16; //bytes the GCM tag adds to each payload
+	static final int CLIENT_TO_SERVER = 0;
+	static final int SERVER_TO_CLIENT = 1;
+	static final int SALT_SIZE = 16;
+	static final int SERVER_NONCE_SIZE = 16;
+	static final byte[] HKDF_INFO = "network_design_project session key".getBytes(StandardCharsets.US_ASCII);
+
+	byte[] presharedKey;
+	byte[] salt; //client's salt for this session
+	byte[] serverNonce; //server's nonce for this session, null until it is picked or heard
+	SecretKeySpec handshakeKey; //seals the SYN, null until a session starts
+	volatile SecretKeySpec key; //seals everything else, null until there is a server nonce
+	Cipher sealCipher;
+	Cipher openCipher;
+	ByteBuffer sealNonce;
+	ByteBuffer openNonce;
+	byte[] sealAad;
+	byte[] openAad;
+
+	PacketCipher(byte[] keyBytes) throws GeneralSecurityException
+	{
+		if(keyBytes.length != 16 && keyBytes.length != 24 && keyBytes.length != 32)
+			throw new InvalidKeyException("AES keys are 16, 24 or 32 bytes, not " + keyBytes.length);
+		presharedKey = keyBytes.clone();
+		sealCipher = Cipher.getInstance("AES/GCM/NoPadding");
+		openCipher = Cipher.getInstance("AES/GCM/NoPadding");
+		sealNonce = ByteBuffer.allocate(12);
+		openNonce = ByteBuffer.allocate(12);
+		sealAad = new byte[3];
+		openAad = new byte[3];
+	}
+
+	/*
+	 * Pick a new random salt, start a session with it and return it for the SYN
+	 */
+	byte[] newSession() throws GeneralSecurityException
+	{
+		byte[] salt = new byte[SALT_SIZE];
+		new SecureRandom().nextBytes(salt);
+		startSession(salt);
+		return salt;
+	}
+
+	/*
+	 * Start a session with the client's salt. Only the handshake key is known until there is a server nonce
+	 */
+	void startSession(byte[] salt) throws GeneralSecurityException
+	{
+		this.salt = salt.clone();
+		serverNonce = null;
+		key = null;
+		handshakeKey = deriveKey(salt);
+	}
+
+	/*
+	 * Server side: pick the nonce that goes in every ACK, and switch to the session key
+	 */
+	byte[] newServerNonce() throws GeneralSecurityException
+	{
+		byte[] nonce = new byte[SERVER_NONCE_SIZE];
+		new SecureRandom().nextBytes(nonce);
+		key = getSessionKey(nonce);
+		serverNonce = nonce;
+		return nonce;
+	}
+
+	/*
+	 * The session key that goes with a server nonce. The client only takes it up with
+	 * useServerNonce() once an ACK has opened with it, so a forged nonce changes nothing
+	 */
+	SecretKeySpec getSessionKey(byte[] nonce) throws GeneralSecurityException
+	{
+		byte[] saltAndNonce = new byte[salt.length + nonce.length];
+		System.arraycopy(salt, 0, saltAndNonce, 0, salt.length);
+		System.arraycopy(nonce, 0, saltAndNonce, salt.length, nonce.length);
+		return deriveKey(saltAndNonce);
+	}
+
+	/*
+	 * Client side: switch to the session key from the first ACK that opened with it
+	 */
+	void useServerNonce(byte[] nonce, SecretKeySpec sessionKey)
+	{
+		serverNonce = nonce.clone();
+		key = sessionKey;
+	}
+
+	/*
+	 * HKDF-SHA256 (RFC 5869) of the pre-shared key with this salt, as long as the pre-shared key
+	 */
+	SecretKeySpec deriveKey(byte[] hkdfSalt) throws GeneralSecurityException
+	{
+		Mac hmac = Mac.getInstance("HmacSHA256");
+		hmac.init(new SecretKeySpec(hkdfSalt, "HmacSHA256"));
+		byte[] prk = hmac.doFinal(presharedKey); //extract
+
+		hmac.init(new SecretKeySpec(prk, "HmacSHA256"));
+		hmac.update(HKDF_INFO);
+		hmac.update((byte) 1);
+		byte[] okm = hmac.doFinal(); //expand, one block covers every AES key size
+		return new SecretKeySpec(okm, 0, presharedKey.length, "AES");
+	}
+
+	/*
+	 * Encrypt and tag a payload with handshakeKey or key. Returns ciphertext followed by the tag
+	 */
+	byte[] seal(SecretKeySpec withKey, byte[] plain, int sessionId, int direction, int index, int seqNum, int flags) throws GeneralSecurityException
+	{
+		setNonce(sealNonce, sessionId, direction, index);
+		setAad(sealAad, seqNum, flags);
+		sealCipher.init(Cipher.ENCRYPT_MODE, withKey, new GCMParameterSpec(TAG_SIZE * 8, sealNonce.array()));
+		sealCipher.updateAAD(sealAad);
+		return sealCipher.doFinal(plain);
+	}
+
+	/*
+	 * Check and decrypt a sealed payload starting at offset.
+	 * Returns null if it was forged, tampered with or sealed for a different packet or key
+	 */
+	byte[] open(SecretKeySpec withKey, byte[] sealed, int offset, int sessionId, int direction, int index, int seqNum, int flags)
+	{
+		if(sealed.length - offset < TAG_SIZE)
+			return null;
+		setNonce(openNonce, sessionId, direction, index);
+		setAad(openAad, seqNum, flags);
+		try {
+			openCipher.init(Cipher.DECRYPT_MODE, withKey, new GCMParameterSpec(TAG_SIZE * 8, openNonce.array()));
+			openCipher.updateAAD(openAad);
+			return openCipher.doFinal(sealed, offset, sealed.length - offset);
+		} catch (GeneralSecurityException e) {
+			//AEADBadTagException when the tag doesn't check out
+			return null;
+		}
+	}
+
+	void setNonce(ByteBuffer nonce, int sessionId, int direction, int index)
+	{
+		nonce.clear();
+		nonce.putInt(sessionId);
+		nonce.putInt(direction);
+		nonce.putInt(index);
+	}
+
+	void setAad(byte[] aad, int seqNum, int flags)
+	{
+		aad[0] = (byte) ((seqNum >> 8) & 0xFF);
+		aad[1] = (byte) (seqNum & 0xFF);
+		aad[2] = (byte) (flags & 0xFF);
+	}
+}
@@ -0,0 +1,50 @@
+package network_design_project;
+
+import java.util.ArrayDeque;
+
+/*
+ * Free list of packet-sized buffers for the send window.
+ *
+ * Packets that get ACKed go back in the pool and are built over again for new data,
+ * so a long transfer allocates about a window's worth of buffers instead of one per packet.
+ * The pool keeps at most maxPooled buffers, so it never holds on to more heap than that.
+ */
+class PacketPool {
+
+	int bufferSize;
+	int maxPooled;
+	ArrayDeque<byte[]> free;
+	long allocated; //buffers made because the pool was empty
+
+	PacketPool(int bufferSize, int maxPooled)
+	{
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+		free = new ArrayDeque<byte[]>(maxPooled);
+		allocated = 0;
+	}
+
+	/*
+	 * Returns a free buffer, making a new one if there are none.
+	 * What's in it is left over from its last packet
+	 */
+	synchronized byte[] take()
+	{
+		byte[] buffer = free.pollFirst();
+		if(buffer == null)
+		{
+			buffer = new byte[bufferSize];
+			allocated++;
+		}
+		return buffer;
+	}
+
+	/*
+	 * Hand a buffer back once nothing will send it again
+	 */
+	synchronized void give(byte[] buffer)
+	{
+		if(buffer.length == bufferSize && free.size() < maxPooled)
+			free.addFirst(buffer);
+	}
+}
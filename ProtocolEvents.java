@@ -0,0 +1,144 @@
+package network_design_project;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/*
+ * Java Flight Recorder events for the protocol, so timeouts, window slides and retransmissions
+ * line up with GC pauses and socket I/O in JDK Mission Control.
+ *
+ * Record with e.g. java -XX:StartFlightRecording:filename=transfer.jfr ... and look under "Network Design".
+ * Callers check isEnabled(), or shouldCommit() for the timed ones, before filling in fields,
+ * so with no recording running an event costs one branch and the JIT gets rid of the allocation.
+ */
+final class ProtocolEvents {
+
+	static final String CATEGORY = "Network Design";
+
+	private ProtocolEvents()
+	{
+	}
+
+	@Name("network_design_project.SegmentSend")
+	@Label("Segment Send")
+	@Category({CATEGORY, "Sender"})
+	@Description("A data packet handed to the socket, or thrown away by the simulated drop")
+	@StackTrace(false)
+	static class SegmentSend extends Event
+	{
+		@Label("Sequence Number")
+		int seqNum;
+
+		@Label("Size")
+		@DataAmount
+		int bytes;
+
+		@Label("Flags")
+		int flags;
+
+		@Label("Retransmission")
+		boolean retransmission;
+
+		@Label("Dropped")
+		boolean dropped;
+	}
+
+	@Name("network_design_project.AckReceived")
+	@Label("ACK Received")
+	@Category({CATEGORY, "Sender"})
+	@Description("A good ACK from the server and what it did to the window")
+	@StackTrace(false)
+	static class AckReceived extends Event
+	{
+		@Label("ACK Number")
+		int ackNumber;
+
+		@Label("Packets ACKed")
+		int packetsAcked;
+
+		@Label("Bytes ACKed")
+		@DataAmount
+		int bytesAcked;
+
+		@Label("Duplicate ACKs")
+		int duplicateAcks;
+
+		@Label("In Flight")
+		int inFlight;
+
+		@Label("Advertised Window")
+		int advertisedWindow;
+	}
+
+	@Name("network_design_project.Timeout")
+	@Label("Retransmission Timeout")
+	@Category({CATEGORY, "Sender"})
+	@Description("The oldest unACKed packet timed out and is being resent")
+	@StackTrace(false)
+	static class Timeout extends Event
+	{
+		@Label("Window Base")
+		int windowBase;
+
+		@Label("In Flight")
+		int inFlight;
+
+		@Label("Timeouts In A Row")
+		int timeoutsInARow;
+	}
+
+	@Name("network_design_project.Retransmit")
+	@Label("Retransmit")
+	@Category({CATEGORY, "Sender"})
+	@Description("The window base resent after a timeout, duplicate ACKs or a partial ACK, timed through the pacing wait and the send")
+	@StackTrace(false)
+	static class Retransmit extends Event
+	{
+		@Label("Reason")
+		String reason;
+
+		@Label("Size")
+		@DataAmount
+		long bytes;
+	}
+
+	@Name("network_design_project.WindowChange")
+	@Label("Send Window Change")
+	@Category({CATEGORY, "Sender"})
+	@Description("The number of packets allowed in flight changed")
+	@StackTrace(false)
+	static class WindowChange extends Event
+	{
+		@Label("Old Window")
+		int oldWindow;
+
+		@Label("New Window")
+		int newWindow;
+
+		@Label("In Flight")
+		int inFlight;
+	}
+
+	@Name("network_design_project.ChecksumFailure")
+	@Label("Checksum Failure")
+	@Category({CATEGORY, "Receiver"})
+	@Description("A packet arrived with a checksum that doesn't match its data")
+	@StackTrace(false)
+	static class ChecksumFailure extends Event
+	{
+		@Label("Agent")
+		String agent;
+
+		@Label("Sequence Number")
+		int seqNum;
+
+		@Label("Size")
+		@DataAmount
+		int bytes;
+	}
+}
@@ -0,0 +1,83 @@
+package network_design_project;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Counters the agents bump from their transfer threads and the GUI samples.
+ *
+ * Everything is an atomic, so the transfer threads never take a lock or wait on
+ * the GUI, and the GUI reads a consistent-enough snapshot whenever it likes.
+ */
+class TransferMetrics {
+
+	LongAdder packetsSent = new LongAdder();
+	LongAdder bytesSent = new LongAdder();
+	LongAdder bytesAcked = new LongAdder(); //client: file and handshake bytes the server ACKed
+	LongAdder bytesDelivered = new LongAdder(); //server: file bytes handed to the writer
+	LongAdder retransmissions = new LongAdder();
+	LongAdder timeouts = new LongAdder();
+	LongAdder fastRetransmits = new LongAdder();
+	LongAdder dropsInjected = new LongAdder(); //packets thrown away by dropChance
+	LongAdder corruptionsInjected = new LongAdder(); //packets bit-flipped by corruptionChance
+	LongAdder reordersInjected = new LongAdder(); //packets held back by reorderChance
+	LongAdder checksumFailures = new LongAdder();
+	LongAdder sequenceGaps = new LongAdder();
+	LongAdder naks = new LongAdder(); //multicast: segments asked for again (receiver) or asked for (sender)
+	LongAdder naksSuppressed = new LongAdder(); //multicast: NAKs not sent (receiver) or not repaired (sender) because someone else's covered them
+	AtomicLong windowOccupancy = new AtomicLong(); //client: packets in flight, server: packets in the reorder buffer
+	AtomicLong windowLimit = new AtomicLong(); //client: send window, server: advertised window
+	AtomicLong srttNanos = new AtomicLong();
+
+	/*
+	 * Copy of the counters at one moment
+	 */
+	Snapshot snapshot()
+	{
+		return new Snapshot(this);
+	}
+
+	static class Snapshot
+	{
+		final long time; //System.nanoTime() when taken
+		final long packetsSent;
+		final long bytesSent;
+		final long bytesAcked;
+		final long bytesDelivered;
+		final long retransmissions;
+		final long timeouts;
+		final long fastRetransmits;
+		final long dropsInjected;
+		final long corruptionsInjected;
+		final long reordersInjected;
+		final long checksumFailures;
+		final long sequenceGaps;
+		final long naks;
+		final long naksSuppressed;
+		final long windowOccupancy;
+		final long windowLimit;
+		final long srttNanos;
+
+		Snapshot(TransferMetrics m)
+		{
+			time = System.nanoTime();
+			packetsSent = m.packetsSent.sum();
+			bytesSent = m.bytesSent.sum();
+			bytesAcked = m.bytesAcked.sum();
+			bytesDelivered = m.bytesDelivered.sum();
+			retransmissions = m.retransmissions.sum();
+			timeouts = m.timeouts.sum();
+			fastRetransmits = m.fastRetransmits.sum();
+			dropsInjected = m.dropsInjected.sum();
+			corruptionsInjected = m.corruptionsInjected.sum();
+			reordersInjected = m.reordersInjected.sum();
+			checksumFailures = m.checksumFailures.sum();
+			sequenceGaps = m.sequenceGaps.sum();
+			naks = m.naks.sum();
+			naksSuppressed = m.naksSuppressed.sum();
+			windowOccupancy = m.windowOccupancy.get();
+			windowLimit = m.windowLimit.get();
+			srttNanos = m.srttNanos.get();
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package network_design_project;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+
+/*
+ * Streaming SHA-256 tree hash for checking a whole transfer end to end.
+ *
+ * Data is cut into CHUNK_SIZE chunks, each chunk is hashed on the common
+ * fork/join pool while more data streams in, and the result is the SHA-256
+ * of all the chunk hashes in order. Both ends cut chunks at the same places,
+ * so it doesn't matter how the data was split into packets.
+ */
+class TreeHasher {
+
+	static final int CHUNK_SIZE = 1024 * 1024;
+	static final int DIGEST_SIZE = 32;
+
+	//one MessageDigest per pool thread, reused for every chunk it hashes
+	static final ThreadLocal<MessageDigest> SHA256 = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue()
+		{
+			return newSha256();
+		}
+	};
+
+	byte[] chunk;
+	int chunkLength;
+	ArrayList<CompletableFuture<byte[]>> chunkDigests;
+
+	TreeHasher()
+	{
+		chunk = new byte[CHUNK_SIZE];
+		chunkLength = 0;
+		chunkDigests = new ArrayList<CompletableFuture<byte[]>>();
+	}
+
+	static MessageDigest newSha256()
+	{
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is always there in the JDK", e);
+		}
+	}
+
+	void update(byte[] data)
+	{
+		update(data, 0, data.length);
+	}
+
+	/*
+	 * Add more data. Hands each full chunk off to be hashed in the background
+	 */
+	void update(byte[] data, int off, int len)
+	{
+		while(len > 0)
+		{
+			int n = Math.min(len, CHUNK_SIZE - chunkLength);
+			System.arraycopy(data, off, chunk, chunkLength, n);
+			chunkLength += n;
+			off += n;
+			len -= n;
+			if(chunkLength == CHUNK_SIZE)
+				submitChunk();
+		}
+	}
+
+	void submitChunk()
+	{
+		final byte[] full = chunk;
+		final int length = chunkLength;
+		chunkDigests.add(CompletableFuture.supplyAsync(() -> {
+			MessageDigest sha = SHA256.get();
+			sha.update(full, 0, length);
+			return sha.digest();
+		}));
+		chunk = new byte[CHUNK_SIZE];
+		chunkLength = 0;
+	}
+
+	/*
+	 * Wait for the chunk hashes and combine them into the final digest
+	 */
+	byte[] digest()
+	{
+		if(chunkLength > 0 || chunkDigests.isEmpty())
+			submitChunk();
+		MessageDigest root = newSha256();
+		for(CompletableFuture<byte[]> chunkDigest : chunkDigests)
+		{
+			root.update(chunkDigest.join());
+		}
+		return root.digest();
+	}
+}
@@ -2,8 +2,17 @@ package network_design_project;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+
+import javax.crypto.spec.SecretKeySpec;
 public class UDPClient extends NetworkAgent{
 		
 	long startTime;
@@ -11,12 +20,67 @@ public class UDPClient extends NetworkAgent{
 	
 	int CLIENT_TIMEOUT;
 	
+	final int DEFAULT_WINDOW_SIZE = 10;
+	final int FAST_RETRANSMIT_THRESHOLD = 3; //duplicate ACKs before resending without waiting for the timer
+	final double PACING_GAIN = 1.25; //pace a bit faster than window/RTT so pacing alone never holds the window back
+	final int MAX_POOLED_PACKETS = 64; //packet buffers kept around for reuse, more than any window the server advertises
+	final int MAX_SILENT_TIMEOUTS = 10; //timeouts in a row with no ACK at all before giving up on the server
+	final long MIN_SILENT_MILLIS = 3000; //but never sooner than this, the server is quiet while it checks a big file
+	
+	//sender models
+	public static final int SENDER_FIXED_WINDOW = 0; //GBN window of windowSize, loss driven
+	public static final int SENDER_BBR = 1; //paced and capped from the bandwidth/min RTT model
+	
 	int INIT = 0;
 	int SEND_PACKET = 1;
 	int WAIT = 2;
 	
 	int CLIENT_STATE = INIT;
 	
+	ReentrantLock windowLock; //protects the window between the sender and ReceiverRunner
+	Condition windowNotFull; //signalled when ACKs free up room in the window
+	long timerDeadline; //time the oldest packet in the window times out, 0 if the timer is stopped
+	int duplicateAcks; //ACKs in a row for the packet just before windowBase
+	boolean inFastRecovery;
+	int recoverSeqNum; //nextSeqNum when fast recovery started. Recovery is over once this is ACKed
+	int peerWindow; //receive window the server advertised in its last ACK
+	int sessionId; //picked per transfer, echoed in every ACK from the server
+	int verifyStatus; //server's verdict on the file, from the ACK for the digest
+	int segmentSize; //file bytes per packet, less than DATA_SIZE when the GCM tag has to fit too
+	int nextPacketIndex; //nextSeqNum without the wraparound, for encryption nonces
+	int lastAckIndex; //counter from the last encrypted ACK accepted, anything not newer is a replay
+	byte[] sessionSalt; //random salt the session key was derived with, sent in the SYN
+	
+	//teardown
+	boolean finSent;
+	volatile boolean finished; //FIN was ACKed, ReceiverRunner can stop
+	int timeoutsWithoutAck; //timeouts since the last good ACK
+	long lastAckAt; //System.currentTimeMillis() of the last good ACK, or the start of the transfer
+	volatile boolean serverGone; //gave up on the server, the transfer failed unless it had already verified the file
+	int lastSendWindow; //for WindowChange events
+	
+	//round trip time estimate. Samples come from packets that were only sent once (Karn's rule)
+	LinkedList<SentPacket> sentPackets; //send time and delivery state of each packet in the window
+	PacketPool packetPool; //buffers the window's packets are built in, recycled once ACKed
+	long srttNanos;
+	long rttVarNanos;
+	
+	//optional pacing of transmissions
+	boolean pacing;
+	long pacingRateCap; //bytes per second, 0 for no cap
+	Pacer pacer;
+	
+	int senderModel;
+	BandwidthEstimator estimator;
+	
+	String[] batchFiles; //files to send in one session instead of imageName, null for a single file
+	InputStream input;
+	
+	//optional compression stage
+	boolean compression;
+	Deflater deflater;
+	byte[] compressBuffer;
+	
 
 	public UDPClient(String imageName, int port, boolean packetLogging, double corruptionChance, double dropChance, int timeOut)
 	{
@@ -24,25 +88,109 @@ public class UDPClient extends NetworkAgent{
 		CLIENT_TIMEOUT = timeOut;
 		
 		windowLock = new ReentrantLock();
+		windowNotFull = windowLock.newCondition();
 		window = new LinkedList<byte[]>();
+		sentPackets = new LinkedList<SentPacket>();
+		packetPool = new PacketPool(PACKET_SIZE, MAX_POOLED_PACKETS);
+		windowSize = DEFAULT_WINDOW_SIZE;
+		peerWindow = DEFAULT_WINDOW_SIZE;
 		windowBase = 0;
 		nextSeqNum = 0;
+		sessionId = new SecureRandom().nextInt();
+		nextPacketIndex = 0;
+		lastAckIndex = -1;
+		compression = false;
+		pacing = false;
+		pacer = new Pacer(2 * PACKET_SIZE);
+		senderModel = SENDER_FIXED_WINDOW;
+		estimator = new BandwidthEstimator(PACKET_SIZE, DEFAULT_WINDOW_SIZE);
 		System.out.println(timeOut);
 	}
 	
-	private int getNumberOfPacketsToSend(String file_to_send) throws IOException{
-		int number_of_packets = 0;
-		//System.out.println(file_to_send);
-		FileInputStream fis = new FileInputStream( file_to_send ); //Open file to send
-		number_of_packets = (fis.available() / DATA_SIZE); //size of file divided by packet size
-		if ( fis.available() % DATA_SIZE > 0){ //if there are bytes leftover
-			number_of_packets++; 
-		}
-		fis.close();
-		return number_of_packets;
+	@Override
+	int getCaptureRole()
+	{
+		return PacketCapture.ROLE_CLIENT;
 	}
 	
-
+	/*
+	 * Pick SENDER_FIXED_WINDOW or SENDER_BBR for this transfer
+	 */
+	public void setSenderModel(int senderModel)
+	{
+		this.senderModel = senderModel;
+		updatePacingRate();
+	}
+	
+	/*
+	 * Space transmissions out at window/RTT instead of sending the window back to back
+	 */
+	public void setPacing(boolean pacing)
+	{
+		this.pacing = pacing;
+		updatePacingRate();
+	}
+	
+	/*
+	 * Upper limit on the pacing rate in bytes per second. 0 for no limit
+	 */
+	public void setPacingRateCap(long pacingRateCap)
+	{
+		this.pacingRateCap = pacingRateCap;
+		updatePacingRate();
+	}
+	
+	/*
+	 * Set the number of packets that can be in flight at once
+	 */
+	public void setWindowSize(int windowSize)
+	{
+		this.windowSize = windowSize;
+	}
+	
+	/*
+	 * Send all of these files in one session instead of imageName.
+	 * The server unpacks them into the directory named by its imageName
+	 */
+	public void setBatchFiles(String[] batchFiles)
+	{
+		this.batchFiles = batchFiles;
+	}
+	
+	/*
+	 * Turn on compression of file blocks before they are segmented.
+	 * Each block is sent compressed only if it actually shrinks.
+	 */
+	public void setCompression(boolean compression)
+	{
+		this.compression = compression;
+	}
+	
+	/*
+	 * Build the handshake: everything the server needs to know about the transfer, in binary
+	 */
+	byte[] makeHandshake(long fileLength)
+	{
+		ByteBuffer handshake = ByteBuffer.allocate(HANDSHAKE_SIZE);
+		handshake.put((byte) HANDSHAKE_VERSION);
+		handshake.putInt(sessionId);
+		handshake.putLong(fileLength);
+		handshake.putShort((short) segmentSize);
+		handshake.putShort((short) windowSize);
+		handshake.put((byte) CHECKSUM_ONES_COMPLEMENT);
+		int options = 0;
+		if(compression)
+			options |= OPTION_COMPRESSION;
+		if(batchFiles != null)
+			options |= OPTION_BATCH;
+		handshake.put((byte) options);
+		return handshake.array();
+	}
+	
+	/*
+	 * Send the file or batch and wait for the server to confirm it.
+	 * Throws if the server rejected it or never said it was good
+	 */
 	public void transferImage() throws Exception
 	{
 		/*
@@ -54,67 +202,56 @@ public class UDPClient extends NetworkAgent{
 		
 		//Socket setup 
 		startTime = System.currentTimeMillis();
+		lastAckAt = startTime;
 		myDatagramSocket = new DatagramSocket();	
-		byte[] sendPacket = null;		//packet (with header) sent to the server
-		byte[] receivePacket = null; 	//packet (with header) received from the server
-		byte[] receivedData = null; 	//unpacked received data 
-		DatagramPacket receiveDatagram = null;
-		int receivedAckNumber = 1;
+		configureSocketBuffers();
 		
-		//Send amount packets to expect to the server
-		int num_packets = getNumberOfPacketsToSend( imageName ); //get number of packets in the image
-
-		int packet_length = String.valueOf(num_packets).getBytes("US-ASCII").length; //length of string version of number of packets
-		byte[] data = new byte[packet_length];
-		data = String.valueOf(num_packets).getBytes("US-ASCII");
-		
-		//keep sending the first packet until it is ack'd
-		//no GBN here
-		do
+		TreeHasher hasher = new TreeHasher();
+		segmentSize = DATA_SIZE;
+		if(packetCipher != null)
 		{
-			log( "Going to send " + num_packets + " packets");
-			sendPacket = addPacketHeader(data, nextSeqNum);
-					
-			unreliableSendPacket(sendPacket);
-			
-			//check to see if ACK received ok
-			receivePacket = new byte[PACKET_SIZE];
-			myDatagramSocket.setSoTimeout(CLIENT_TIMEOUT);
-			receiveDatagram = new DatagramPacket(receivePacket, receivePacket.length);
-			try{
-				myDatagramSocket.receive(receiveDatagram);
-			} catch (SocketException e) {
-				log("Socket port closed externally");
-			} catch (InterruptedIOException e){
-				log("Client timeout");
-			}
-			
-			receivedAckNumber = getSequenceNumber(receivePacket);
-			log("Received First ACK");
-			
-			receivedData = destructPacket(receivePacket);
-		}while(receivedData == null || receivedAckNumber != nextSeqNum); 
-		
-		//start doing GBN. Init the window, start the receiver thread.
-		log( "Sending all data packets");
-		
-		windowLock.lock();
-		nextSeqNum = getIncrementedSequenceNumber(sendPacket);
-		windowBase = nextSeqNum; //start the window
-		windowLock.unlock();
+			segmentSize = DATA_SIZE - PacketCipher.TAG_SIZE;
+			sessionSalt = packetCipher.newSession();
+			log("Encrypting with AES-GCM");
+		}
 		
-		FileInputStream fis = new FileInputStream( imageName );		
+		//one file, or many packed into one stream
+		long fileLength;
+		if(batchFiles != null)
+		{
+			BatchInputStream batch = new BatchInputStream(batchFiles);
+			input = batch;
+			fileLength = batch.getLength();
+			log("Batching " + batchFiles.length + " files");
+		}
+		else
+		{
+			input = new FileInputStream( imageName );
+			fileLength = new File(imageName).length();
+		}
 		
 		Thread receiverThread = new Thread(new ReceiverRunner()); //thread to receive packets concurrently
 		receiverThread.start();
 		
+		//the handshake is packet 0 of the window, so it gets the same retransmission as data.
+		//Data goes out right behind it instead of waiting for its ACK, unless encrypting
+		log( "Going to send " + fileLength + " bytes, session " + sessionId);
+		rdtSend(makeHandshake(fileLength), FLAG_SYN);
+		if(packetCipher != null)
+			awaitSessionKey();
+		
+		if(compression)
+		{
+			deflater = new Deflater(Deflater.BEST_SPEED);
+			compressBuffer = new byte[COMPRESSION_BLOCK_SIZE];
+		}
+		
 		//make packets and send until I'm out of data
+		long bytes_left = fileLength;
 		while(true && !killMe){
-			int data_size = fis.available(); //get bytes left to read
-			if (data_size > DATA_SIZE){
-				data_size = DATA_SIZE; //max 1024 at a time
-			}
-			else if (data_size == 0){
+			int max_size = compression ? COMPRESSION_BLOCK_SIZE : segmentSize;
+			int data_size = (int) Math.min(bytes_left, max_size); //max 1024 at a time, or a whole block if compressing
+			if (data_size == 0){
 				log("End of data available. Break");
 				break;
 			}
@@ -122,19 +259,47 @@ public class UDPClient extends NetworkAgent{
 			byte[] readData = new byte[data_size];
 			
 			//read data
-			if (fis.read(readData) == -1) //if end of file is reached
+			if (!readFully(input, readData)) //if end of file is reached
 			{
-				log("End of file reached. Stop sending");
+				log("End of file reached early. Stop sending");
 				break;
 			}
-			rdtSend(readData);
+			bytes_left -= data_size;
+			hasher.update(readData);
+			if(compression)
+				sendBlock(readData);
+			else
+				rdtSend(readData, 0);
 		}
 		
+		//last packet is the digest of everything, so the server can check the whole file
+		if(!killMe)
+		{
+			byte[] digest = hasher.digest();
+			log("Sending SHA-256 tree hash");
+			rdtSend(digest, FLAG_DIGEST);
+		}
+		
+		//FIN goes right behind the digest. Once it is ACKed everything before it was too
+		rdtSend(new byte[0], FLAG_FIN);
+		awaitFinAck();
+		finished = true;
 		receiverThread.join();
-		fis.close();
+		if(senderModel == SENDER_BBR)
+			log("BBR " + estimator.getStateName() + ": bottleneck " + (long) (estimator.getBottleneckBandwidth() * 1e9) 
+					+ " bytes/s, min RTT " + estimator.minRttNanos + " ns");
+		log("Allocated " + packetPool.allocated + " packet buffers");
 		endTime = System.currentTimeMillis() - startTime;
 		System.out.println("Time : " + endTime);
-		finalize();
+		if(killMe && !serverGone)
+			return;
+		if(verifyStatus == VERIFY_FAILED)
+			throw new IOException("Server rejected the transfer, its SHA-256 tree hash doesn't match");
+		if(verifyStatus != VERIFY_OK)
+		{
+			log("Server's check of the file is still pending");
+			throw new IOException(serverGone ? "Server stopped answering partway through the transfer" : "Server never confirmed the transfer");
+		}
 }
 
 	@Override
@@ -143,122 +308,564 @@ public class UDPClient extends NetworkAgent{
 			transferImage();
 		} catch (Exception e) {
 			e.printStackTrace();
+		} finally {
+			close();
+		}
+	}
+	
+	/*
+	 * Encrypted data is sealed with a key that takes in the server's nonce, so it has to wait
+	 * for the first ACK. That costs a round trip, but it means a recorded session can't be
+	 * replayed to a server, since the server picks a new nonce every time
+	 */
+	void awaitSessionKey() throws Exception
+	{
+		windowLock.lock();
+		try{
+			while(packetCipher.key == null && !killMe)
+				windowNotFull.await(CLIENT_TIMEOUT, TimeUnit.MILLISECONDS);
+		} finally {
+			windowLock.unlock();
+		}
+	}
+	
+	/*
+	 * Wait for the server to ACK everything up to and including the FIN.
+	 * Stops waiting if handleTimeout() gives up on the server. If the file was verified by then,
+	 * only the FIN-ACK went missing and the transfer still counts
+	 */
+	void awaitFinAck() throws InterruptedException
+	{
+		windowLock.lock();
+		try{
+			while(!window.isEmpty() && !killMe)
+				windowNotFull.await(CLIENT_TIMEOUT, TimeUnit.MILLISECONDS);
+			if(window.isEmpty())
+				log("Got FIN-ACK, closing");
+			else if(serverGone && verifyStatus == VERIFY_OK)
+				log("No FIN-ACK, but the server verified the file, closing anyway");
+		} finally {
+			windowLock.unlock();
+		}
+	}
+	
+	/*
+	 * Stop the receiver and let go of the file, compressor and socket
+	 */
+	@Override
+	public void close()
+	{
+		finished = true;
+		try {
+			if(input != null)
+				input.close();
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
+		input = null;
+		if(deflater != null)
+			deflater.end();
+		deflater = null;
+		super.close();
 	}
 	
 	/*
-	 * sends the data given.
-	 * Returns true if it could send it off, and false if it can't do anything with the data right now.
+	 * Fill the buffer from the stream. Returns false if it ran out first
 	 */
-	boolean rdtSend(byte[] data) throws Exception  
+	boolean readFully(InputStream in, byte[] buffer) throws IOException
 	{
-		if(nextSeqNum < windowBase + windowSize)
+		int filled = 0;
+		while(filled < buffer.length)
 		{
-			//make packet and add it to the window
-			byte[] sendPacket = new byte[data.length + HEADER_SIZE];
-			sendPacket = addPacketHeader(data, nextSeqNum);
-			
-			windowLock.lock(); //protect the window from mutual access w/ receiver
-			try{				
-				window.add(sendPacket);
-				//if sending first in the window, start the timer
-				if(windowBase == nextSeqNum)
-				{
-					myDatagramSocket.setSoTimeout(CLIENT_TIMEOUT);
-					log("Started reset timer");
-				}
-				nextSeqNum = getIncrementedSequenceNumber(sendPacket);
-			} finally {
-				windowLock.unlock(); //unlock the lock no matter what
+			int n = in.read(buffer, filled, buffer.length - filled);
+			if(n == -1)
+				return false;
+			filled += n;
+		}
+		return true;
+	}
+	
+	/*
+	 * Sends a block of file data compressed if it deflates to anything smaller,
+	 * as the compressed length followed by the deflated bytes, split up into FLAG_COMPRESSED segments.
+	 * Blocks that don't shrink are sent raw, split up into segmentSize segments.
+	 */
+	void sendBlock(byte[] block) throws Exception
+	{
+		byte[] toSend = block;
+		int flags = 0;
+		int length = compressBlock(block);
+		if(length >= 0)
+		{
+			log("Compressed block of " + block.length + " bytes to " + length);
+			toSend = new byte[COMPRESSED_HEADER_SIZE + length];
+			toSend[0] = (byte) ((length >> 8) & 0xFF); //msbFirst
+			toSend[1] = (byte) (length & 0xFF);
+			System.arraycopy(compressBuffer, 0, toSend, COMPRESSED_HEADER_SIZE, length);
+			flags = FLAG_COMPRESSED;
+		}
+		for(int i = 0; i < toSend.length; i += segmentSize)
+		{
+			rdtSend(Arrays.copyOfRange(toSend, i, Math.min(toSend.length, i + segmentSize)), flags);
+		}
+	}
+	
+	/*
+	 * Deflates the block into compressBuffer.
+	 * Returns the compressed length, or -1 if it wouldn't make the block any smaller to send
+	 */
+	int compressBlock(byte[] block)
+	{
+		deflater.reset();
+		deflater.setInput(block);
+		deflater.finish();
+		int length = deflater.deflate(compressBuffer);
+		if(!deflater.finished() || COMPRESSED_HEADER_SIZE + length >= block.length)
+			return -1;
+		return length;
+	}
+	
+	/*
+	 * sends the data given, with the given header flags.
+	 * Blocks while the window is full.
+	 * Returns true if it could send it off, and false if the agent was killed while waiting.
+	 */
+	boolean rdtSend(byte[] data, int flags) throws Exception  
+	{
+		byte[] sendPacket = null;
+		SentPacket sent = null;
+		
+		windowLock.lock(); //protect the window from mutual access w/ receiver
+		try{
+			while(window.size() >= getSendWindow() && !killMe)
+			{
+				log("Window full, waiting for ACKs");
+				windowNotFull.await(CLIENT_TIMEOUT, TimeUnit.MILLISECONDS);
 			}
+			if(killMe)
+				return false;
 			
-			//send the packet
-			unreliableSendPacket(sendPacket);
-			return true;
+			//make packet and add it to the window.
+			//It stays clean in the window so retransmissions send exactly what was built here.
+			//Only this thread takes buffers from the pool, so this one can't be reused before it is sent below
+			sendPacket = addPacketHeader(packetPool.take(), sealPayload(data, flags), nextSeqNum, flags);
+			window.add(sendPacket);
+			if((flags & FLAG_FIN) != 0)
+				finSent = true;
+			metrics.windowOccupancy.set(window.size());
+			sent = new SentPacket(); //stamped once the pacer lets it go
+			sentPackets.add(sent);
+			nextSeqNum = getIncrementedSequenceNumber(sendPacket);
+			nextPacketIndex++;
+		} finally {
+			windowLock.unlock(); //unlock the lock no matter what
 		}
-		else
+		
+		//send the packet
+		unreliableSendPacket(sendPacket, sent);
+		return true;
+	}
+	
+	/*
+	 * Number of packets allowed in flight: our own window (or the BBR in-flight cap),
+	 * capped by what the server says it can hold.
+	 * Always allows one so there is an ACK coming back to reopen a closed window.
+	 * The server only takes that probe once its write queue has room, and re-ACKs it either way
+	 */
+	int getSendWindow()
+	{
+		int ownWindow = senderModel == SENDER_BBR ? estimator.getInflightCap() : windowSize;
+		return Math.max(1, Math.min(ownWindow, peerWindow));
+	}
+	
+	/*
+	 * Encrypt the payload for the next packet if there is a key.
+	 * The handshake carries the session ID and salt in the clear in front,
+	 * since the server needs them for the nonce and the session key
+	 */
+	byte[] sealPayload(byte[] data, int flags) throws Exception
+	{
+		if(packetCipher == null)
+			return data;
+		if((flags & FLAG_SYN) == 0)
+			return packetCipher.seal(packetCipher.key, data, sessionId, PacketCipher.CLIENT_TO_SERVER, nextPacketIndex, nextSeqNum, flags);
+		byte[] sealed = packetCipher.seal(packetCipher.handshakeKey, data, sessionId, PacketCipher.CLIENT_TO_SERVER, nextPacketIndex, nextSeqNum, flags);
+		return ByteBuffer.allocate(4 + PacketCipher.SALT_SIZE + sealed.length).putInt(sessionId).put(sessionSalt).put(sealed).array();
+	}
+	
+	/*
+	 * Check and decrypt an ACK's data when encrypting. Encrypted ACKs start with the server's ACK counter
+	 * in the clear, which is the nonce index and has to go up every time so old ACKs can't be replayed,
+	 * then the server's nonce for the session key. The first ACK that opens with it sets the key.
+	 * Returns null if the ACK should be ignored
+	 */
+	byte[] openAck(byte[] ackPacket, byte[] ackData)
+	{
+		if(packetCipher == null)
+			return ackData;
+		int prefixSize = 4 + PacketCipher.SERVER_NONCE_SIZE;
+		if(ackData.length < prefixSize)
+			return null;
+		int ackIndex = ByteBuffer.wrap(ackData).getInt();
+		if(ackIndex <= lastAckIndex)
+			return null;
+		SecretKeySpec sessionKey = packetCipher.key;
+		byte[] serverNonce = null;
+		if(sessionKey == null)
+		{
+			serverNonce = Arrays.copyOfRange(ackData, 4, prefixSize);
+			try {
+				sessionKey = packetCipher.getSessionKey(serverNonce);
+			} catch (GeneralSecurityException e) {
+				log("Couldn't derive the session key: " + e.getMessage());
+				return null;
+			}
+		}
+		byte[] plain = packetCipher.open(sessionKey, ackData, prefixSize, sessionId, PacketCipher.SERVER_TO_CLIENT, ackIndex, 
+				getSequenceNumber(ackPacket), getPacketFlags(ackPacket));
+		if(plain == null)
 		{
-			log("Had to refuse data. Window full");
-			return false;
+			log("ACK failed authentication");
+			return null;
+		}
+		if(serverNonce != null)
+			packetCipher.useServerNonce(serverNonce, sessionKey);
+		lastAckIndex = ackIndex;
+		return plain;
+	}
+	
+	/*
+	 * Returns the receive window the server advertised in an ACK's data
+	 */
+	int getAdvertisedWindow(byte[] ackData)
+	{
+		return ByteBuffer.wrap(ackData).getShort(0) & 0xFFFF;
+	}
+	
+	/*
+	 * Returns the session ID the server echoed in an ACK's data
+	 */
+	int getAckSessionId(byte[] ackData)
+	{
+		return ByteBuffer.wrap(ackData).getInt(2);
+	}
+	
+	/*
+	 * Timer for the oldest unACKed packet.
+	 * Kept as a deadline because the socket timeout can't be changed under a receive() that is already blocking.
+	 * Call these with windowLock held.
+	 */
+	void startTimer()
+	{
+		timerDeadline = System.currentTimeMillis() + CLIENT_TIMEOUT;
+	}
+	
+	void stopTimer()
+	{
+		timerDeadline = 0;
+	}
+	
+	boolean timerExpired()
+	{
+		windowLock.lock();
+		try{
+			return timerDeadline != 0 && System.currentTimeMillis() >= timerDeadline;
+		} finally {
+			windowLock.unlock();
 		}
-		
 	}
 	
 	//call on receiver timeout.
-	//resends all of the packets in the window up to nextSeqNum
+	//resends the oldest packet in the window, or gives up if the server has gone
 	void handleTimeout() 
 	{
-		try {
-			myDatagramSocket.setSoTimeout(CLIENT_TIMEOUT);
-		} catch (SocketException e) {
-			log("Error resetting timer after timeout");
-			killThisAgent();
-			e.printStackTrace();
-		}
-		
-		
+		byte[] base;
 		windowLock.lock();
 		try{
-			//walk through the window and send everything from the base up to the next sequence number
-			for(int i = 0; getSequenceNumber(window.get(i)) < nextSeqNum; i++)
+			metrics.timeouts.increment();
+			timeoutsWithoutAck++;
+			ProtocolEvents.Timeout event = new ProtocolEvents.Timeout();
+			if(event.isEnabled())
 			{
-				try {
-					unreliableSendPacket(window.get(i));
-				} catch (Exception e) {        
-					log("issues sending all the packets in the window on timeout");
-					e.printStackTrace();
-					return;
-				}
+				event.windowBase = windowBase;
+				event.inFlight = window.size();
+				event.timeoutsInARow = timeoutsWithoutAck;
+				event.commit();
+			}
+			if(timeoutsWithoutAck >= MAX_SILENT_TIMEOUTS && System.currentTimeMillis() - lastAckAt >= MIN_SILENT_MILLIS)
+			{
+				//in any phase: handshake, data or the FIN. Stops the sender, ReceiverRunner and anything waiting on the window
+				log("No ACK after " + timeoutsWithoutAck + " timeouts, giving up on the server");
+				serverGone = true;
+				killMe = true;
+				windowNotFull.signalAll();
+				return;
 			}
+			//The server buffers what came after the hole, so only the base is resent and its ACK
+			//moves the window past everything that got there behind it. Another hole shows up as
+			//duplicate ACKs and is repaired by fast retransmit and the partial ACKs after it.
+			//Partial ACKs aren't chased straight after a timeout: if the timer only went off early,
+			//ACKs still on their way would each look partial and resend a packet that got there fine
+			inFastRecovery = false;
+			duplicateAcks = 0;
+			startTimer();
+			base = markBaseRetransmitted();
 		} finally {
 			windowLock.unlock(); //release the lock no matter what
 		}
+		retransmit(base, "timeout");
 	}
 	
 	//Action to perform after a good packet reception
-	void receivedGoodPacket(byte[] packet)
+	void receivedGoodPacket(byte[] packet, byte[] ackData)
 	{
+		int ackNumber = getSequenceNumber(packet);
+		ProtocolEvents.AckReceived ackEvent = new ProtocolEvents.AckReceived();
+		byte[] retransmitPacket = null; //sent after the lock is released
+		String retransmitReason = null;
+		
 		//protect window variables
 		windowLock.lock();
-		//move the window up to the new window base by removing packets from the beginning
 		try{
-			windowBase = getSequenceNumber(packet);
-			for(byte[] p = window.removeFirst(); windowBase != getSequenceNumber(p); p = window.removeFirst())
+			//any good ACK shows the server is still there, even one that doesn't move the window
+			timeoutsWithoutAck = 0;
+			lastAckAt = System.currentTimeMillis();
+			peerWindow = getAdvertisedWindow(ackData);
+			//the verdict only moves away from pending once. ACKs sent before the server
+			//checked the file can still turn up after the one that carries it
+			int status = ackData[6];
+			if(verifyStatus == VERIFY_PENDING && (status == VERIFY_OK || status == VERIFY_FAILED))
 			{
-				windowBase = getSequenceNumber(p);
-				log("Moving windowBase up to " + getSequenceNumber(p));
+				verifyStatus = status;
+				log(status == VERIFY_OK ? "Server verified the file" : "Server REJECTED the file, hashes don't match");
 			}
-			//stop the timer if there are no packets in flight, reset otherwise.
-		
-			if(windowBase == nextSeqNum)
+			
+			//ACKs are cumulative: everything from windowBase up to ackNumber got there
+			int acked = ((ackNumber - windowBase) & 0xFFFF) + 1;
+			if(acked <= window.size())
 			{
-				//stop the timer
-				myDatagramSocket.setSoTimeout(0);
+				//move the window up to the new window base by removing packets from the beginning
+				SentPacket newest = null;
+				int ackedBytes = 0;
+				ackEvent.packetsAcked = acked;
+				for(int i = 0; i < acked; i++)
+				{
+					byte[] p = window.removeFirst();
+					ackedBytes += getWireLength(p);
+					packetPool.give(p);
+					newest = sentPackets.removeFirst();
+				}
+				long rttSample = newest.retransmitted ? 0 : System.nanoTime() - newest.sentAt;
+				if(rttSample > 0)
+					updateRtt(rttSample);
+				estimator.onAck(ackedBytes, newest.delivered, newest.deliveredTime, rttSample, window.size());
+				updatePacingRate();
+				countBytesForTuning(ackedBytes, srttNanos);
+				windowBase = (ackNumber + 1) & 0xFFFF;
+				log("Moving windowBase up to " + windowBase);
+				metrics.bytesAcked.add(ackedBytes);
+				ackEvent.bytesAcked = ackedBytes;
+				metrics.windowOccupancy.set(window.size());
+				duplicateAcks = 0;
+				if(finSent && window.isEmpty())
+					finished = true; //FIN-ACK, nothing left to receive
+				windowNotFull.signalAll();
+				
+				if(inFastRecovery)
+				{
+					if(((recoverSeqNum - windowBase) & 0xFFFF) <= window.size() && windowBase != recoverSeqNum)
+					{
+						//partial ACK: the server filled one hole but is still missing the new base
+						log("Partial ACK, retransmitting " + windowBase);
+						retransmitPacket = markBaseRetransmitted();
+						retransmitReason = "partial ACK";
+					}
+					else
+					{
+						inFastRecovery = false;
+					}
+				}
+				
+				//stop the timer if there are no packets in flight, reset otherwise.
+				if(window.isEmpty())
+					stopTimer();
+				else
+					startTimer();
 			}
-			else
+			else if(ackNumber == ((windowBase - 1) & 0xFFFF) && !window.isEmpty())
 			{
-				//reset hte timer
-				myDatagramSocket.setSoTimeout(CLIENT_TIMEOUT);
+				//server re-ACKed the last packet it got in order, so the base is missing
+				duplicateAcks++;
+				if(duplicateAcks == FAST_RETRANSMIT_THRESHOLD && !inFastRecovery)
+				{
+					//fast retransmit: don't wait for the timer to go off.
+					//The server buffers what came after the hole, so only the base needs resending
+					log("Fast retransmit of " + windowBase + " after " + duplicateAcks + " duplicate ACKs");
+					metrics.fastRetransmits.increment();
+					inFastRecovery = true;
+					recoverSeqNum = nextSeqNum;
+					startTimer();
+					retransmitPacket = markBaseRetransmitted();
+					retransmitReason = "fast retransmit";
+				}
+			}
+			int sendWindow = getSendWindow();
+			metrics.windowLimit.set(sendWindow);
+			if(sendWindow != lastSendWindow)
+			{
+				ProtocolEvents.WindowChange windowEvent = new ProtocolEvents.WindowChange();
+				if(windowEvent.isEnabled())
+				{
+					windowEvent.oldWindow = lastSendWindow;
+					windowEvent.newWindow = sendWindow;
+					windowEvent.inFlight = window.size();
+					windowEvent.commit();
+				}
+				lastSendWindow = sendWindow;
+			}
+			if(window.size() < sendWindow)
+				windowNotFull.signalAll();
+			if(ackEvent.isEnabled())
+			{
+				ackEvent.ackNumber = ackNumber;
+				ackEvent.duplicateAcks = duplicateAcks;
+				ackEvent.inFlight = window.size();
+				ackEvent.advertisedWindow = peerWindow;
+				ackEvent.commit();
 			}
-		} catch (SocketException e) {
-			log("Error resetting timer after good packet received");
-			killThisAgent();
-			e.printStackTrace();
 		} finally {
 			windowLock.unlock(); //unlock no matter what
 		}
+		if(retransmitPacket != null)
+			retransmit(retransmitPacket, retransmitReason);
+	}
+	
+	/*
+	 * Fold a round trip sample into the smoothed RTT and its variance (RFC 6298 weights)
+	 */
+	void updateRtt(long sampleNanos)
+	{
+		if(srttNanos == 0)
+		{
+			srttNanos = sampleNanos;
+			rttVarNanos = sampleNanos / 2;
+		}
+		else
+		{
+			rttVarNanos = (3 * rttVarNanos + Math.abs(srttNanos - sampleNanos)) / 4;
+			srttNanos = (7 * srttNanos + sampleNanos) / 8;
+		}
+		metrics.srttNanos.set(srttNanos);
+	}
+	
+	/*
+	 * Work out the pacing rate from the window and smoothed RTT, held under the configured cap.
+	 * Before there is an RTT sample only the cap applies.
+	 * BBR is always paced, at the rate its model gives.
+	 */
+	void updatePacingRate()
+	{
+		if(!pacing && senderModel != SENDER_BBR)
+		{
+			pacer.setRate(0);
+			return;
+		}
+		double rate = 0;
+		if(senderModel == SENDER_BBR)
+			rate = estimator.getPacingRate();
+		else if(srttNanos > 0)
+			rate = PACING_GAIN * getSendWindow() * PACKET_SIZE * 1e9 / srttNanos;
+		if(pacingRateCap > 0 && (rate == 0 || rate > pacingRateCap))
+			rate = pacingRateCap;
+		pacer.setRate(rate);
+	}
+	
+	//mark the oldest packet in the window as retransmitted and return it for retransmit().
+	//Call with windowLock held.
+	byte[] markBaseRetransmitted()
+	{
+		sentPackets.getFirst().retransmitted = true;
+		return window.getFirst();
+	}
+	
+	/*
+	 * Resend a packet from the window. Called without windowLock, so the sender and
+	 * updatePacingRate() aren't shut out while the pacer spaces the retransmission out.
+	 * Only ReceiverRunner retransmits, and it is also the only thread that gives ACKed packets
+	 * back to the pool, so the buffer can't be reused for new data while it is sent here
+	 */
+	void retransmit(byte[] packet, String reason)
+	{
+		ProtocolEvents.Retransmit event = new ProtocolEvents.Retransmit();
+		event.begin();
+		try {
+			unreliableSendPacket(packet, null);
+			metrics.retransmissions.increment();
+		} catch (Exception e) {
+			log("issues retransmitting the window base");
+			e.printStackTrace();
+			return;
+		}
+		if(event.shouldCommit())
+		{
+			event.reason = reason;
+			event.bytes = getWireLength(packet);
+			event.commit();
+		}
 	}
 	
-	//maybe send a packet on the dataGram socket depending on drop Chance
-	void unreliableSendPacket(byte[] sendPacket) throws Exception
+	//maybe send a packet on the dataGram socket depending on drop Chance.
+	//firstSend is the packet's entry in sentPackets the first time it goes out, null for retransmissions
+	void unreliableSendPacket(byte[] sendPacket, SentPacket firstSend) throws Exception
 	{
-		if(dropPacket(dropChance)){
-			log("Dropped packet: " + nextSeqNum);
+		ProtocolEvents.SegmentSend event = new ProtocolEvents.SegmentSend();
+		event.begin(); //duration covers the pacing wait and the send
+		pacer.pace(getWireLength(sendPacket));
+		if(firstSend != null)
+			markSent(firstSend);
+		boolean dropped = dropPacket(dropChance);
+		if(dropped){
+			captureSent(sendPacket, true, false);
+			log("Dropped packet: " + getSequenceNumber(sendPacket));
 		} else {
-			transmitPacket(sendPacket, myDatagramSocket);
-			log("Sent packet: " + nextSeqNum);
+			byte[] wirePacket = corruptPacketMaybe(sendPacket, corruptionChance);
+			captureSent(wirePacket, false, wirePacket != sendPacket);
+			transmitMaybeReordered(wirePacket, InetAddress.getByName("localhost"));
+			metrics.packetsSent.increment();
+			metrics.bytesSent.add(getWireLength(sendPacket));
+			log("Sent packet: " + getSequenceNumber(sendPacket));
+		}
+		if(event.shouldCommit())
+		{
+			event.seqNum = getSequenceNumber(sendPacket);
+			event.bytes = getWireLength(sendPacket);
+			event.flags = getPacketFlags(sendPacket);
+			event.retransmission = firstSend == null;
+			event.dropped = dropped;
+			event.commit();
+		}
+	}
+	
+	/*
+	 * Stamp a packet's send time and the estimator's delivery state as the pacer lets it go,
+	 * so time spent waiting in the pacer doesn't show up in RTT or delivery rate samples
+	 */
+	void markSent(SentPacket sent)
+	{
+		windowLock.lock();
+		try{
+			sent.sentAt = System.nanoTime();
+			sent.delivered = estimator.getDelivered();
+			sent.deliveredTime = estimator.getDeliveredTime();
+			//start the timer when the first packet in the window actually goes out
+			if(timerDeadline == 0 && !window.isEmpty())
+			{
+				startTimer();
+				log("Started reset timer");
+			}
+		} finally {
+			windowLock.unlock();
 		}
-		
 	}
 	
 	class ReceiverRunner implements Runnable
@@ -275,14 +882,15 @@ public class UDPClient extends NetworkAgent{
 				e1.printStackTrace();
 			}
 			
-			//repeatedly receive packets
-			while(!killMe)
+			//repeatedly receive packets until the FIN is ACKed
+			while(!killMe && !finished)
 			{
+				boolean gotPacket = false;
 				try{
 					myDatagramSocket.receive(receiveDatagram);
+					gotPacket = true;
 				} catch (InterruptedIOException e){
-					log("Client timeout");
-					handleTimeout();
+					//just wake up and check the timer
 				} catch (SocketException e) {
 					log("Socket port closed externally");
 					return;
@@ -290,16 +898,35 @@ public class UDPClient extends NetworkAgent{
 					return;
 				}
 				
-				//pull the data out of the packet and check if it is good.
-				byte[] packetData = destructPacket(receivePacket);
-				
 				//only process packet if it is good.
 				//otherwise skip processing and wait for other packets or a timeout.
-				if(packetData != null)
+				byte[] ackData = gotPacket ? destructPacket(receivePacket) : null;
+				if(gotPacket)
+					captureReceived(receivePacket, receiveDatagram.getLength(), ackData != null);
+				if(ackData != null)
+					ackData = openAck(receivePacket, ackData);
+				if(ackData != null && ackData.length >= ACK_DATA_SIZE && getAckSessionId(ackData) == sessionId)
+				{
+					receivedGoodPacket(receivePacket, ackData);
+				}
+				
+				if(timerExpired())
 				{
-					receivedGoodPacket(receivePacket);
+					log("Client timeout");
+					handleTimeout();
 				}
 			}
 		}	
 	} //\ReceiverThread
+	
+	/*
+	 * What the sender remembers about each packet in the window
+	 */
+	class SentPacket
+	{
+		long sentAt; //System.nanoTime() it first went out
+		boolean retransmitted; //no RTT samples from these (Karn's rule)
+		long delivered; //estimator's delivered bytes when it was sent
+		long deliveredTime;
+	}
 }
\ No newline at end of file
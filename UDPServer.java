@@ -1,10 +1,67 @@
 package network_design_project;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 
 public class UDPServer extends NetworkAgent{	
 		
+	final int RECEIVE_WINDOW = 32; //early packets the server will hold on to
+	final int WRITE_QUEUE_SIZE = 64; //delivered packets waiting for the disk
+	final byte[] END_OF_WRITES = new byte[0]; //tells the writer thread to finish up
+	final int DEFAULT_LINGER_MILLIS = 1000;
+	final int DEFAULT_IDLE_MILLIS = 10000;
+	final int WRITER_JOIN_MILLIS = 2000; //most close() waits for a disk write that is already under way
+	
+	Inflater inflater;
+	byte[] inflateBuffer;
+	byte[] compressedBlock; //segments of the compressed block being collected
+	int compressedLength; //its length from the first segment, 0 when not in a block
+	int compressedFilled;
+	
+	//reorder buffer for packets that got here before the ones in front of them, indexed by seqNum % RECEIVE_WINDOW
+	byte[][] reorderData;
+	int[] reorderFlags;
+	int bufferedCount;
+	
+	//delivered data is handed to a writer thread so a slow disk doesn't stall socket reads
+	ArrayBlockingQueue<byte[]> writeQueue;
+	OutputStream output;
+	Thread writerThread;
+	volatile IOException writeError;
+	
+	//overload tracking
+	int sequenceGaps; //packets skipped over by later arrivals: dropped in the network or overrun in the socket buffer
+	int highestSeqSeen; //furthest ahead sequence number seen so far
+	long firstAckSentAt;
+	long firstRttNanos; //time from the first ACK to the first packet past the client's first window, used for auto-tuning
+	
+	//transfer metadata from the handshake
+	boolean synReceived;
+	int sessionId;
+	long fileLength;
+	int clientWindow;
+	boolean batch; //stream is many files to unpack into the directory imageName
+	
+	//teardown
+	boolean finReceived;
+	int lingerMillis; //how long to keep re-ACKing the FIN in case the FIN-ACK was lost
+	int idleMillis; //how long to wait for the client once it has started, before its FIN
+	
+	//end to end check of the written data
+	TreeHasher hasher; //fed by the writer thread
+	byte[] expectedDigest; //from the client's last packet
+	int verifyStatus;
+	
+	//encryption state
+	int expectedIndex; //expectedSeqNum without the wraparound, for nonces
+	int ackIndex; //counter for encrypted ACKs, sent in the clear as their nonce
+	int authFailures;
 	
 	/*
 	 * Creates a new server
@@ -13,6 +70,316 @@ public class UDPServer extends NetworkAgent{
 	public UDPServer(String imageName, int port, boolean packetLogging, double corruptionChance, double dropChance)
 	{
 		super("SERVER: ", "ServerLog.txt", imageName, port, packetLogging, corruptionChance, dropChance);
+		inflater = new Inflater();
+		inflateBuffer = new byte[COMPRESSION_BLOCK_SIZE];
+		compressedBlock = new byte[COMPRESSION_BLOCK_SIZE];
+		
+		reorderData = new byte[RECEIVE_WINDOW][];
+		reorderFlags = new int[RECEIVE_WINDOW];
+		bufferedCount = 0;
+		writeQueue = new ArrayBlockingQueue<byte[]>(WRITE_QUEUE_SIZE);
+		hasher = new TreeHasher();
+		verifyStatus = VERIFY_PENDING;
+		lingerMillis = DEFAULT_LINGER_MILLIS;
+		idleMillis = DEFAULT_IDLE_MILLIS;
+	}
+	
+	/*
+	 * How long to stay after the client's FIN, re-ACKing it if it comes again.
+	 * Measured from the last packet received, so it should be a few client timeouts
+	 */
+	public void setLingerMillis(int lingerMillis)
+	{
+		this.lingerMillis = lingerMillis;
+	}
+	
+	/*
+	 * How long to wait for the next packet once the client has started, before giving up on it.
+	 * A client that is still there resends at least once per timeout, so this should be many of those
+	 */
+	public void setIdleMillis(int idleMillis)
+	{
+		this.idleMillis = idleMillis;
+	}
+	
+	@Override
+	int getCaptureRole()
+	{
+		return PacketCapture.ROLE_SERVER;
+	}
+	
+	/*
+	 * Queue a packet's data for the writer thread, inflating it first if the client compressed it.
+	 * The handshake packet is read for the transfer metadata instead.
+	 * Never blocks, since packets are only delivered once canDeliver() says there is room.
+	 * Returns how many bytes of the file that was
+	 */
+	int deliverPacket(int flags, byte[] packetData) throws Exception
+	{
+		if(writeError != null)
+			throw writeError;
+		if((flags & FLAG_SYN) != 0)
+		{
+			readHandshake(packetData);
+			return 0;
+		}
+		if(output == null)
+			openOutput();
+		if((flags & FLAG_DIGEST) != 0)
+		{
+			expectedDigest = packetData;
+			return 0;
+		}
+		if((flags & FLAG_FIN) != 0)
+		{
+			finReceived = true;
+			return 0;
+		}
+		if((flags & FLAG_COMPRESSED) != 0)
+			return collectCompressed(packetData);
+		writeQueue.put(packetData);
+		metrics.bytesDelivered.add(packetData.length);
+		return packetData.length;
+	}
+	
+	/*
+	 * Whether a packet with these flags can be delivered without blocking on the write queue.
+	 * When the disk has fallen behind and the queue is full, data (including the probe the client
+	 * sends into a closed window) is left undelivered and gets re-ACKed with a window of 0 instead,
+	 * so the receive loop keeps reading the socket. The client sends it again when its timer goes off
+	 */
+	boolean canDeliver(int flags)
+	{
+		return (flags & (FLAG_SYN | FLAG_DIGEST | FLAG_FIN)) != 0 || writeQueue.remainingCapacity() > 0;
+	}
+	
+	/*
+	 * Compare the hash of what was written against the digest the client sent.
+	 * If it doesn't match, the image or every file of the batch is renamed to .rejected
+	 */
+	void verifyImage()
+	{
+		if(writeError == null && Arrays.equals(hasher.digest(), expectedDigest))
+		{
+			verifyStatus = VERIFY_OK;
+			log("Image verified: SHA-256 tree hash matches");
+			return;
+		}
+		verifyStatus = VERIFY_FAILED;
+		log("Image REJECTED: SHA-256 tree hash doesn't match");
+		if(output instanceof BatchOutputStream)
+		{
+			((BatchOutputStream) output).rejectFiles();
+		}
+		else
+		{
+			File rejected = new File(imageName + ".rejected");
+			rejected.delete();
+			new File(imageName).renameTo(rejected);
+		}
+	}
+	
+	/*
+	 * Pull the transfer metadata out of the handshake packet
+	 */
+	void readHandshake(byte[] data) throws IOException
+	{
+		ByteBuffer handshake = ByteBuffer.wrap(data);
+		int version = handshake.get();
+		sessionId = handshake.getInt();
+		fileLength = handshake.getLong();
+		int segmentSize = handshake.getShort() & 0xFFFF;
+		clientWindow = handshake.getShort() & 0xFFFF;
+		int checksumType = handshake.get();
+		int options = handshake.get();
+		
+		log("Handshake: session " + sessionId + ", " + fileLength + " bytes, segments of " + segmentSize 
+				+ ", window " + clientWindow + ", checksum type " + checksumType + ", options " + options);
+		if(version != HANDSHAKE_VERSION || segmentSize > DATA_SIZE || checksumType != CHECKSUM_ONES_COMPLEMENT)
+			throw new IOException("Unsupported transfer options in handshake");
+		synReceived = true;
+		batch = (options & OPTION_BATCH) != 0;
+	}
+	
+	/*
+	 * Open the image file for writing, or the directory to unpack a batch of files into.
+	 * Waits for the first packet after the handshake, so that a replayed SYN on its own
+	 * can't truncate the image when encrypting
+	 */
+	void openOutput() throws IOException
+	{
+		if(batch)
+			output = new BatchOutputStream(new File(imageName));
+		else
+			output = new FileOutputStream(imageName); //Open output file
+		writerThread = new Thread(new WriterRunner(output)); //thread to write to disk concurrently
+		writerThread.start();
+	}
+	
+	/*
+	 * Number of packets past the last in-order one the client may send.
+	 * Early packets inside it get buffered rather than thrown away,
+	 * and everything in it has to fit in the write queue once delivered.
+	 */
+	int getAdvertisedWindow()
+	{
+		return Math.min(RECEIVE_WINDOW, writeQueue.remainingCapacity());
+	}
+	
+	/*
+	 * Count the packets a new highest sequence number skipped over.
+	 * Most of them will show up later as retransmissions, but a climbing count
+	 * means packets are being lost on the way in, including socket buffer overruns.
+	 */
+	void countSequenceGap(int seqNum)
+	{
+		int ahead = (seqNum - highestSeqSeen) & 0xFFFF;
+		if(ahead > 0 && ahead < 0x8000)
+		{
+			if(ahead > 1)
+			{
+				sequenceGaps += ahead - 1;
+				metrics.sequenceGaps.add(ahead - 1);
+				log("Sequence gap of " + (ahead - 1) + " before " + seqNum);
+			}
+			highestSeqSeen = seqNum;
+		}
+	}
+	
+	/*
+	 * Make an ACK for the sequence number.
+	 * Its data is the advertised receive window and the session ID from the handshake
+	 */
+	byte[] makeAck(int seqNum) throws Exception
+	{
+		if(firstAckSentAt == 0)
+			firstAckSentAt = System.nanoTime();
+		int rwnd = getAdvertisedWindow();
+		metrics.windowLimit.set(rwnd);
+		metrics.windowOccupancy.set(bufferedCount);
+		ByteBuffer ackData = ByteBuffer.allocate(ACK_DATA_SIZE);
+		ackData.putShort((short) rwnd);
+		ackData.putInt(sessionId);
+		ackData.put((byte) verifyStatus);
+		if(packetCipher == null)
+			return addPacketHeader(ackData.array(), seqNum);
+		
+		//encrypted ACKs lead with their counter and the server nonce in the clear
+		byte[] sealed = packetCipher.seal(packetCipher.key, ackData.array(), sessionId, PacketCipher.SERVER_TO_CLIENT, ackIndex, seqNum, 0);
+		byte[] payload = ByteBuffer.allocate(4 + PacketCipher.SERVER_NONCE_SIZE + sealed.length)
+				.putInt(ackIndex).put(packetCipher.serverNonce).put(sealed).array();
+		ackIndex++;
+		return addPacketHeader(payload, seqNum);
+	}
+	
+	/*
+	 * Check and decrypt a packet's payload.
+	 * Data nonces use the sequence number unwrapped around the one we're expecting, and anything
+	 * far from it was either already delivered or is outside the window, so replays get nowhere.
+	 * Returns null if the packet has to be thrown away
+	 */
+	byte[] openPayload(byte[] packet, byte[] packetData, int seqNum, int expectedSeqNum) throws GeneralSecurityException
+	{
+		int flags = getPacketFlags(packet);
+		byte[] plain;
+		if((flags & FLAG_SYN) != 0)
+		{
+			//handshake brings its own session ID and the salt for the session key in the clear
+			int prefixSize = 4 + PacketCipher.SALT_SIZE;
+			if(packetData.length < prefixSize)
+				return null;
+			int synSessionId = ByteBuffer.wrap(packetData).getInt();
+			//once there is a session, a resent SYN has to open with its handshake key.
+			//Before that, a SYN that doesn't open leaves nothing behind for the next one
+			if(!synReceived)
+				packetCipher.startSession(Arrays.copyOfRange(packetData, 4, prefixSize));
+			plain = packetCipher.open(packetCipher.handshakeKey, packetData, prefixSize, synSessionId, PacketCipher.CLIENT_TO_SERVER, 0, seqNum, flags);
+			//the SYN could be a replay, so the rest of the session is keyed with a nonce from us as well
+			if(plain != null && !synReceived)
+				packetCipher.newServerNonce();
+		}
+		else if(!synReceived)
+		{
+			//no session ID yet to check it with, the client will send it again
+			log("Dropping packet " + seqNum + " from before the handshake");
+			return null;
+		}
+		else
+		{
+			int index = expectedIndex + (short) (seqNum - expectedSeqNum);
+			plain = packetCipher.open(packetCipher.key, packetData, 0, sessionId, PacketCipher.CLIENT_TO_SERVER, index, seqNum, flags);
+		}
+		if(plain == null)
+		{
+			authFailures++;
+			log("Packet " + seqNum + " failed authentication");
+		}
+		return plain;
+	}
+	
+	/*
+	 * Send an ACK unless it gets dropped
+	 */
+	void sendAck(byte[] ackPacket, InetAddress IPAddress) throws Exception
+	{
+		if(dropPacket(dropChance)){
+			captureSent(ackPacket, true, false);
+			log("ACK packet dropped");
+		} else {
+			byte[] wirePacket = corruptPacketMaybe(ackPacket, corruptionChance);
+			captureSent(wirePacket, false, wirePacket != ackPacket);
+			transmitMaybeReordered(wirePacket, IPAddress);
+			metrics.packetsSent.increment();
+			metrics.bytesSent.add(ackPacket.length);
+		}
+	}
+	
+	/*
+	 * Add a segment of a compressed block. The first one starts with the block's compressed length.
+	 * Once the block is all here, inflate it and queue it for the writer.
+	 * Returns how many bytes of the file that was, 0 until the block is complete
+	 */
+	int collectCompressed(byte[] data) throws Exception
+	{
+		int offset = 0;
+		if(compressedLength == 0)
+		{
+			if(data.length < COMPRESSED_HEADER_SIZE)
+				throw new DataFormatException("Compressed block header cut short");
+			compressedLength = ((data[0] & 0xFF) << 8) | (data[1] & 0xFF);
+			compressedFilled = 0;
+			offset = COMPRESSED_HEADER_SIZE;
+			if(compressedLength == 0 || compressedLength > compressedBlock.length)
+				throw new DataFormatException("Bad compressed block length " + compressedLength);
+		}
+		int n = data.length - offset;
+		if(compressedFilled + n > compressedLength)
+			throw new DataFormatException("Compressed block longer than its header says");
+		System.arraycopy(data, offset, compressedBlock, compressedFilled, n);
+		compressedFilled += n;
+		if(compressedFilled < compressedLength)
+			return 0;
+		
+		compressedLength = 0;
+		int length = decompressBlock(compressedBlock, compressedFilled);
+		writeQueue.put(Arrays.copyOf(inflateBuffer, length));
+		metrics.bytesDelivered.add(length);
+		log("Inflated " + compressedFilled + " bytes to " + length);
+		return length;
+	}
+	
+	/*
+	 * Inflates a compressed block into inflateBuffer.
+	 * Returns the number of bytes of file data it held
+	 */
+	int decompressBlock(byte[] data, int dataLength) throws DataFormatException
+	{
+		inflater.reset();
+		inflater.setInput(data, 0, dataLength);
+		int length = inflater.inflate(inflateBuffer);
+		if(!inflater.finished())
+			throw new DataFormatException("Compressed block larger than " + COMPRESSION_BLOCK_SIZE);
+		return length;
 	}
 		
 	public void receiveImage() throws Exception
@@ -25,86 +392,22 @@ public class UDPServer extends NetworkAgent{
 		 */
 			
 		myDatagramSocket = new DatagramSocket(port);
-		byte[] packet = new byte[PACKET_SIZE];
+		configureSocketBuffers();
+		byte[] packet = null;
 		
 		DatagramPacket receiveDatagram = null;
 		InetAddress IPAddress = null;
-		String data;
-			
-		packet = null;
-		receiveDatagram = null;
-		data = null;
-		IPAddress = null;
-		
-		
-		/*
-		 * 
-		 *  Following code taken from
-		 *  https://lowell.umassonline.net/bbcswebdav/pid-305360-dt-content-rid-977475_1/courses/L2710-11029/Sockets.pdf
-		 * 
-		 */
-		
-		//Receives the first packet
-		packet = new byte[PACKET_SIZE];
 		byte[] sendPacket = null;
 		int seqNum = 0;
-		int expectedSeqNum = 0;
-		int packets_received = 0;
-		int packets_expected = 0;
-				
-		//keep trying to receive the first packet
-		while(killMe == false)
-		{
-			receiveDatagram = new DatagramPacket(packet, packet.length);
-			try{
-				myDatagramSocket.receive(receiveDatagram);
-			} catch (SocketException e) {
-				log("Socket port closed externally");
-				break;
-			}
+		int expectedSeqNum = 0; //the handshake is always packet 0
+		long bytes_received = 0;
+		boolean complete = false;
+		boolean lingering = false;
+		boolean clientGone = false;
 		
-			seqNum = getSequenceNumber(packet);
-			expectedSeqNum = seqNum;
-			
-			//converts the received packet into a String
-			if(destructPacket(receiveDatagram.getData()) != null){
-				data = new String(destructPacket(receiveDatagram.getData()), "US-ASCII");
-				packets_expected = Integer.parseInt(data, 10);
-			}
-			log("Received " + data);
-						
-			
-			packets_received = 0;
-			log("Waiting for " + packets_expected + " packets");
-			
-			IPAddress = receiveDatagram.getAddress();
-			port = receiveDatagram.getPort();
-			
-			if(data != null && seqNum == expectedSeqNum)
-			{
-				//make a new packet with right ACK num and send it
-				sendPacket = addPacketHeader(new byte[DATA_SIZE], seqNum);
-				transmitPacket(sendPacket, myDatagramSocket, IPAddress);
-				expectedSeqNum = getIncrementedSequenceNumber(packet);
-				break;
-			} else {
-				log("bad checksum on first packet");
-				sendPacket = addPacketHeader(new byte[DATA_SIZE], getIncrementedSequenceNumber(packet));
-				if(dropPacket(dropChance)){
-					log("ACK packet dropped");
-				} else {
-					transmitPacket(sendPacket, myDatagramSocket, IPAddress);
-				}
-				//repeat(don't break) without incrementing state if bad
-				
-			}
-		}
-			
-		//packet is good, open image file for writing.
-		FileOutputStream fos = new FileOutputStream(imageName); //Open output file
 
-		log("Ready for packets"); //+1 is crucial.... If the last ACK message the server sends is corrupt, the client may ping it back
-		while ( packets_received < packets_expected+1 && !killMe){
+		log("Ready for packets"); //runs until the client's FIN, then lingers in case the FIN-ACK gets lost
+		while (!killMe){
 			
 			
 			//wait for the client to send something
@@ -112,52 +415,176 @@ public class UDPServer extends NetworkAgent{
 			receiveDatagram = new DatagramPacket(packet, packet.length);
 			try{
 				myDatagramSocket.receive(receiveDatagram);
+			} catch (SocketTimeoutException e) {
+				if(lingering)
+				{
+					log("Nothing from the client for " + lingerMillis + " ms after its FIN, closing");
+				}
+				else
+				{
+					log("Nothing from the client for " + idleMillis + " ms, giving up on it");
+					clientGone = true;
+				}
+				break;
 			} catch (SocketException e) {
 				log("Socket port closed externally");
 				break;
 			}
+			
+			if(IPAddress == null)
+			{
+				//waits as long as it takes for a client to start, but not for one that stops partway
+				IPAddress = receiveDatagram.getAddress();
+				port = receiveDatagram.getPort();
+				myDatagramSocket.setSoTimeout(idleMillis);
+			}
 				
 			//extracts data. Data is null if checksum is bad.
 			seqNum = getSequenceNumber(packet);
 			byte[] packetData = destructPacket( packet );
+			captureReceived(packet, receiveDatagram.getLength(), packetData != null);
 
 			log("Got packet:" + seqNum);
+			if(synReceived && firstRttNanos == 0 && packetData != null && seqNum >= clientWindow)
+			{
+				//the client can't send past its first window until our first ACK gets back to it
+				firstRttNanos = System.nanoTime() - firstAckSentAt;
+				log("Estimated RTT " + firstRttNanos + " ns");
+			}
+			countBytesForTuning(receiveDatagram.getLength(), firstRttNanos);
+			if(packetData != null && packetCipher != null)
+				packetData = openPayload(packet, packetData, seqNum, expectedSeqNum);
+			if(packetData != null)
+				countSequenceGap(seqNum);
 				
-			//data is not corrupt and has expected sequence number
-			if ( packetData != null && seqNum == expectedSeqNum){
-				//deliver packet 
-				fos.write(packetData);
-				//make a new ACK with seqnum= ACK
-				log("Packet was good, send ACK with " + seqNum);
-				sendPacket = addPacketHeader(new byte[DATA_SIZE], seqNum);
-					
-				if(dropPacket(dropChance)){
-						log("ACK packet dropped");
-				} else {
-					transmitPacket(sendPacket, myDatagramSocket, IPAddress);
-				}
-					
-				//Increment state
+			int offset = (seqNum - expectedSeqNum) & 0xFFFF;
+			
+			//data is not corrupt, has expected sequence number and there is room to write it
+			if ( packetData != null && offset == 0 && canDeliver(getPacketFlags(packet))){
+				//deliver packet, then whatever was buffered behind it that is now in order
+				bytes_received += deliverPacket(getPacketFlags(packet), packetData);
 				expectedSeqNum = getIncrementedSequenceNumber(packet);
-				packets_received++; //increment the good packet count
-				log("packet number " + packets_received);
+				expectedIndex++;
+				while(reorderData[expectedSeqNum % RECEIVE_WINDOW] != null && canDeliver(reorderFlags[expectedSeqNum % RECEIVE_WINDOW]))
+				{
+					int slot = expectedSeqNum % RECEIVE_WINDOW;
+					log("Delivering buffered packet " + expectedSeqNum);
+					bytes_received += deliverPacket(reorderFlags[slot], reorderData[slot]);
+					reorderData[slot] = null;
+					bufferedCount--;
+					expectedSeqNum = (expectedSeqNum + 1) & 0xFFFF;
+					expectedIndex++;
+				}
+				log("bytes received " + bytes_received);
+				
+				if(!complete && synReceived && bytes_received >= fileLength && expectedDigest != null)
+				{
+					//whole image is here, get it onto the disk and check it before ACKing the digest
+					complete = true;
+					log("Got all " + bytes_received + " bytes");
+					finishWrites();
+					verifyImage();
+				}
+				
+				//make a new ACK with seqnum= ACK for the last packet delivered in order
+				sendPacket = makeAck((expectedSeqNum - 1) & 0xFFFF);
+				log("Packet was good, send ACK with " + getSequenceNumber(sendPacket));
+				sendAck(sendPacket, IPAddress);
+				
+				if(finReceived && !lingering)
+				{
+					//that was the FIN-ACK. A retransmitted FIN means it was lost, and gets re-ACKed below
+					log("Got FIN, lingering for " + lingerMillis + " ms");
+					if(lingerMillis <= 0)
+						break;
+					lingering = true;
+					myDatagramSocket.setSoTimeout(lingerMillis);
+				}
 			} else {
-				log("Bad Checksum or Bad Sequence num :(. Send ACK with " + getSequenceNumber(sendPacket));
-				//send the old sendPacket with the previous sequence number
-				if(dropPacket(dropChance)){
-					log("ACK packet dropped");
-				} else {
-					transmitPacket(sendPacket, myDatagramSocket, IPAddress);
+				if(packetData != null && offset == 0)
+					log("Write queue full, not taking packet " + seqNum + " yet");
+				if(packetData != null && offset > 0 && offset < RECEIVE_WINDOW && reorderData[seqNum % RECEIVE_WINDOW] == null)
+				{
+					//early but intact, hold on to it until the gap fills
+					log("Buffering early packet " + seqNum);
+					reorderData[seqNum % RECEIVE_WINDOW] = packetData;
+					reorderFlags[seqNum % RECEIVE_WINDOW] = getPacketFlags(packet);
+					bufferedCount++;
+				}
+				if(packetCipher != null && !synReceived)
+				{
+					//no session key to seal an ACK with yet, and the client ignores unsealed ones.
+					//It resends the SYN on its own
+					continue;
 				}
+				//re-ACK the last packet delivered in order
+				sendPacket = makeAck((expectedSeqNum - 1) & 0xFFFF);
+				log("Bad Checksum or Bad Sequence num :(. Send ACK with " + getSequenceNumber(sendPacket));
+				sendAck(sendPacket, IPAddress);
 			}
 				
 		}
 			
-		log("Got " + packets_received + " packets");
+		log("Got " + bytes_received + " bytes");
 		log(corruptedCounter + " checksums corrupted :'(");
-		//save the image
-		fos.close();
-		finalize();
+		log(sequenceGaps + " packets skipped in sequence gaps (drops/overruns)");
+		if(packetCipher != null)
+			log(authFailures + " packets failed authentication");
+		if(!complete)
+			finishWrites();
+		if(clientGone && !complete)
+			throw new IOException("Client stopped sending partway through the transfer, got " + bytes_received + " of " + fileLength + " bytes");
+	}
+	
+	/*
+	 * Let go of the socket and decompressor. If the transfer died partway,
+	 * stop the writer and close whatever it had written.
+	 * A write already under way can't be interrupted, so the writer gets a while to finish it
+	 * before the stream is closed under it
+	 */
+	@Override
+	public void close()
+	{
+		if(writerThread != null)
+		{
+			writerThread.interrupt();
+			try {
+				writerThread.join(WRITER_JOIN_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if(writerThread.isAlive())
+				log("Writer still busy after " + WRITER_JOIN_MILLIS + " ms, closing the image anyway");
+			writerThread = null;
+			try {
+				output.close();
+			} catch (IOException e) {
+				log("Error closing image: " + e.getMessage());
+			}
+		}
+		inflater.end();
+		super.close();
+	}
+	
+	/*
+	 * Let the writer drain the queue, then save the image
+	 */
+	void finishWrites() throws Exception
+	{
+		if(writerThread == null)
+			return;
+		writeQueue.put(END_OF_WRITES);
+		writerThread.join();
+		writerThread = null;
+		try {
+			output.close();
+		} catch (IOException e) {
+			writeError = e;
+		}
+		if(writeError != null)
+			log("Error writing image: " + writeError.getMessage());
+		if(output instanceof BatchOutputStream)
+			log("Wrote " + ((BatchOutputStream) output).getFilesWritten() + " files to " + imageName);
 	}
 
 	@Override
@@ -166,6 +593,41 @@ public class UDPServer extends NetworkAgent{
 			receiveImage();
 		} catch (Exception e) {
 			e.printStackTrace();
+		} finally {
+			close();
 		}
 	}
-}
\ No newline at end of file
+	
+	class WriterRunner implements Runnable
+	{
+		OutputStream fos;
+		
+		WriterRunner(OutputStream fos)
+		{
+			this.fos = fos;
+		}
+		
+		@Override
+		public void run() {
+			//write delivered data in order until told to stop
+			while(true)
+			{
+				try{
+					byte[] data = writeQueue.take();
+					if(data == END_OF_WRITES)
+						return;
+					if(writeError == null)
+					{
+						fos.write(data);
+						hasher.update(data);
+					}
+				} catch (InterruptedException e) {
+					return;
+				} catch (IOException e) {
+					//keep draining so the receive loop never blocks on a dead writer
+					writeError = e;
+				}
+			}
+		}
+	} //\WriterRunner
+}
@@ -0,0 +1,195 @@
+package network_design_project;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+ * Property checks for the packet codec in NetworkAgent: sequence numbers and their
+ * wraparound, building packets, taking them apart again and the checksum.
+ *
+ * Usage: java -ea network_design_project.CodecTest [seed]
+ */
+public class CodecTest {
+
+	static final int RANDOM_PACKETS = 2000;
+
+	TestSupport t;
+	NetworkAgent agent;
+	Random random;
+
+	CodecTest(long seed)
+	{
+		t = new TestSupport("CodecTest (seed " + seed + ")");
+		agent = new UDPServer("unused", 0, false, 0, 0); //only its codec methods are used, it never opens a socket
+		random = new Random(seed);
+	}
+
+	public static void main(String[] args)
+	{
+		long seed = args.length > 0 ? Long.parseLong(args[0]) : System.nanoTime();
+		CodecTest test = new CodecTest(seed);
+		test.sequenceNumbers();
+		test.roundTrips();
+		test.pooledBuffers();
+		test.checksum();
+		test.corruptionIsCaught();
+		test.oversizedPayload();
+		test.t.finish();
+	}
+
+	/*
+	 * Every 16-bit sequence number survives the header, and incrementing wraps 0xFFFF to 0
+	 */
+	void sequenceNumbers()
+	{
+		byte[] empty = new byte[0];
+		int wrong = 0;
+		for(int seq = 0; seq <= 0xFFFF; seq++)
+		{
+			byte[] packet = agent.addPacketHeader(empty, seq);
+			if(agent.getSequenceNumber(packet) != seq || agent.getIncrementedSequenceNumber(packet) != ((seq + 1) & 0xFFFF))
+				wrong++;
+		}
+		t.check(wrong == 0, wrong + " sequence numbers didn't round trip or increment");
+		t.check(agent.getIncrementedSequenceNumber(agent.addPacketHeader(empty, 0xFFFF)) == 0, "0xFFFF doesn't wrap to 0");
+
+		//numbers past 16 bits are cut down to them, the way nextSeqNum wraps
+		t.check(agent.getSequenceNumber(agent.addPacketHeader(empty, 0x10005)) == 5, "sequence number isn't taken mod 2^16");
+	}
+
+	/*
+	 * Random payloads of every size from empty to DATA_SIZE come back out of destructPacket unchanged
+	 */
+	void roundTrips()
+	{
+		for(int i = 0; i < RANDOM_PACKETS; i++)
+		{
+			int length = i <= agent.DATA_SIZE ? i : random.nextInt(agent.DATA_SIZE + 1);
+			byte[] data = new byte[length];
+			random.nextBytes(data);
+			int seq = random.nextInt(0x10000);
+			int flags = random.nextInt(0x100);
+
+			byte[] packet = agent.addPacketHeader(data, seq, flags);
+			if(!t.check(packet.length == agent.HEADER_SIZE + length, "packet of " + length + " bytes is " + packet.length + " long"))
+				return;
+			t.check(agent.getWireLength(packet) == packet.length, "wire length of a " + length + " byte packet");
+			t.check(agent.getPacketLength(packet) == length, "length field of a " + length + " byte packet");
+			t.check(agent.getSequenceNumber(packet) == seq, "sequence number of a " + length + " byte packet");
+			t.check(agent.getPacketFlags(packet) == flags, "flags of a " + length + " byte packet");
+			t.check(Arrays.equals(agent.destructPacket(packet), data), length + " byte payload didn't come back out");
+		}
+	}
+
+	/*
+	 * A packet built over a dirty pooled buffer is the same on the wire as one built fresh
+	 */
+	void pooledBuffers()
+	{
+		byte[] buffer = new byte[agent.PACKET_SIZE];
+		for(int i = 0; i < 200; i++)
+		{
+			random.nextBytes(buffer); //whatever the last packet left in it
+			byte[] data = new byte[random.nextInt(agent.DATA_SIZE + 1)];
+			random.nextBytes(data);
+			int seq = random.nextInt(0x10000);
+
+			byte[] pooled = agent.addPacketHeader(buffer, data, seq, 0);
+			byte[] fresh = agent.addPacketHeader(data, seq, 0);
+			t.check(pooled == buffer, "pooled packet isn't built in the buffer it was given");
+			t.check(Arrays.equals(Arrays.copyOf(pooled, agent.getWireLength(pooled)), fresh), "pooled packet differs on the wire from a fresh one");
+			t.check(Arrays.equals(agent.destructPacket(pooled), data), "pooled packet's payload didn't come back out");
+		}
+	}
+
+	/*
+	 * The inverted checksum is the bitwise complement of the plain one
+	 */
+	void checksum()
+	{
+		t.check(Arrays.equals(agent.calculateChecksum(new byte[0], false), new byte[] {0, 0}), "checksum of nothing isn't 0");
+		for(int i = 0; i < 500; i++)
+		{
+			byte[] data = new byte[random.nextInt(agent.DATA_SIZE + 1)];
+			random.nextBytes(data);
+			byte[] plain = agent.calculateChecksum(data, false);
+			byte[] inverted = agent.calculateChecksum(data, true);
+			t.check((byte) ~plain[0] == inverted[0] && (byte) ~plain[1] == inverted[1],
+					"inverted checksum isn't the complement for " + data.length + " bytes");
+
+			//odd lengths are padded with a zero byte
+			if(data.length % 2 == 1)
+				t.check(Arrays.equals(plain, agent.calculateChecksum(Arrays.copyOf(data, data.length + 1), false)),
+						"odd length isn't summed as if padded with 0");
+		}
+	}
+
+	/*
+	 * Any single bit flipped anywhere in the packet, header fields included, is caught
+	 * and counted. So is the damage corruptPacketMaybe does
+	 */
+	void corruptionIsCaught()
+	{
+		long failuresBefore = agent.metrics.checksumFailures.sum();
+		int flips = 0;
+		int missed = 0;
+		for(int i = 0; i < 300; i++)
+		{
+			byte[] data = new byte[1 + random.nextInt(agent.DATA_SIZE)];
+			random.nextBytes(data);
+			byte[] packet = agent.addPacketHeader(data, random.nextInt(0x10000), 0);
+
+			int index = random.nextBoolean() ? random.nextInt(agent.HEADER_SIZE) : agent.HEADER_SIZE + random.nextInt(data.length);
+			byte[] damaged = packet.clone();
+			damaged[index] ^= 1 << random.nextInt(8);
+			flips++;
+			if(agent.destructPacket(damaged) != null)
+				missed++;
+
+			byte[] copy = agent.corruptPacketMaybe(packet, 100);
+			t.check(copy != packet, "corruptPacketMaybe at 100% handed back the original");
+			t.check(agent.destructPacket(copy) == null, "corruptPacketMaybe's damage wasn't caught");
+			t.check(agent.destructPacket(packet) != null, "corruptPacketMaybe damaged the packet it was given");
+			t.check(agent.corruptPacketMaybe(packet, 0) == packet, "corruptPacketMaybe at 0% made a copy");
+		}
+		t.check(missed == 0, missed + " of " + flips + " single bit flips weren't caught");
+
+		//a flipped flag would turn data into a FIN, digest or compressed segment
+		int flagFlips = 0;
+		for(int bit = 0; bit < 8; bit++)
+		{
+			byte[] damaged = agent.addPacketHeader(new byte[] {1, 2, 3}, 7, 0);
+			damaged[6] ^= 1 << bit;
+			flagFlips++;
+			t.check(agent.destructPacket(damaged) == null, "flag bit " + bit + " flipped wasn't caught");
+		}
+		t.check(agent.metrics.checksumFailures.sum() - failuresBefore == flips + 300 + flagFlips, "checksum failures weren't all counted");
+	}
+
+	/*
+	 * A payload that can't fit trips the assert, when asserts are on
+	 */
+	void oversizedPayload()
+	{
+		if(!NetworkAgent.class.desiredAssertionStatus())
+		{
+			System.out.println("CodecTest: asserts are off, run with -ea to check oversized payloads");
+			return;
+		}
+		boolean tripped = false;
+		try {
+			agent.addPacketHeader(new byte[agent.DATA_SIZE + 1], 0, 0);
+		} catch (AssertionError e) {
+			tripped = true;
+		}
+		t.check(tripped, "payload of DATA_SIZE + 1 bytes didn't trip the assert");
+
+		boolean fits = true;
+		try {
+			agent.addPacketHeader(new byte[agent.DATA_SIZE], 0, 0);
+		} catch (AssertionError e) {
+			fits = false;
+		}
+		t.check(fits, "payload of exactly DATA_SIZE bytes tripped the assert");
+	}
+}
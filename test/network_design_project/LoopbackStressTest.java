@@ -0,0 +1,152 @@
+package network_design_project;
+
+import java.io.File;
+
+/*
+ * Sends files client to server over localhost in every mode (plain, encrypted, compressed,
+ * batch and BBR), once each with packets dropped, corrupted and reordered in both
+ * directions, and checks the server ends up with exactly what was sent.
+ * The impairments are rolled from the seed, which is printed so a failing run can be repeated.
+ *
+ * Usage: java network_design_project.LoopbackStressTest [impairment %] [file KB] [seed]
+ */
+public class LoopbackStressTest {
+
+	static final String[] MODES = {"plain", "encrypted", "compressed", "batch", "bbr"};
+	static final String[] IMPAIRMENTS = {"drops", "corruption", "reordering"};
+	static final int BATCH_FILES = 24;
+	static final int MAX_BATCH_FILE = 25000;
+
+	public static void main(String[] args) throws Exception
+	{
+		double impairment = args.length > 0 ? Double.parseDouble(args[0]) : 5;
+		int fileKilobytes = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+		long seed = args.length > 2 ? Long.parseLong(args[2]) : System.nanoTime();
+		TestSupport t = new TestSupport("LoopbackStressTest (seed " + seed + ")");
+
+		File work = TestSupport.tempDirectory("loopback");
+		try {
+			stress(t, impairment, fileKilobytes, seed, work);
+		} finally {
+			TestSupport.deleteTree(work);
+		}
+		t.finish();
+	}
+
+	/*
+	 * Every mode under every impairment, then the rejected and dead peer cases, all in work
+	 */
+	static void stress(TestSupport t, double impairment, int fileKilobytes, long seed, File work) throws Exception
+	{
+		File input = TestSupport.writeMixedFile(new File(work, "input.bin"), fileKilobytes * 1024, 1);
+		File[] batch = new File[BATCH_FILES];
+		for(int i = 0; i < BATCH_FILES; i++)
+		{
+			//sizes from empty up to about three compression blocks
+			int length = i == 0 ? 0 : (i * i * 1129) % MAX_BATCH_FILE;
+			batch[i] = TestSupport.writeMixedFile(new File(work, "batch" + i + ".dat"), length, i);
+		}
+
+		int run = 0;
+		for(String mode : MODES)
+		{
+			for(String kind : IMPAIRMENTS)
+			{
+				LoopbackTransfer transfer = new LoopbackTransfer();
+				transfer.seed = seed + 2 * run;
+				if(mode.equals("batch"))
+				{
+					transfer.batchFiles = batch;
+					transfer.output = new File(work, "out" + run);
+				}
+				else
+				{
+					transfer.input = input;
+					transfer.output = new File(work, "out" + run + ".bin");
+				}
+				transfer.encrypted = mode.equals("encrypted");
+				transfer.compressed = mode.equals("compressed") || mode.equals("batch");
+				transfer.bbr = mode.equals("bbr");
+				if(kind.equals("drops"))
+					transfer.dropChance = impairment;
+				else if(kind.equals("corruption"))
+					transfer.corruptionChance = impairment;
+				else
+					transfer.reorderChance = impairment;
+
+				String name = mode + " with " + impairment + "% " + kind;
+				boolean ok = transfer.run();
+				System.out.println(name + ": " + transfer.describe());
+				t.check(ok, name);
+				//make sure the impairment actually happened, or the run proves nothing
+				long injected = kind.equals("drops") ? transfer.clientMetrics.dropsInjected
+						: kind.equals("corruption") ? transfer.clientMetrics.corruptionsInjected : transfer.clientMetrics.reordersInjected;
+				t.check(impairment == 0 || injected > 0, name + " didn't inject anything");
+				run++;
+			}
+		}
+		rejectedTransfers(t, input, batch, work);
+		deadPeers(t, input, work, seed + 2 * run);
+	}
+
+	/*
+	 * Either end dying partway through leaves the other one to give up on its own
+	 */
+	static void deadPeers(TestSupport t, File input, File work, long seed) throws Exception
+	{
+		LoopbackTransfer serverDies = new LoopbackTransfer();
+		serverDies.input = input;
+		serverDies.output = new File(work, "server-dies.bin");
+		serverDies.dropChance = 5;
+		serverDies.seed = seed;
+		serverDies.killServerAfterMillis = 10;
+		serverDies.deadlineMillis = 15000;
+		serverDies.run();
+		System.out.println("server killed: " + serverDies.describe());
+		t.check(serverDies.finished && serverDies.clientGaveUp, "client didn't give up on a server that was killed");
+
+		LoopbackTransfer clientDies = new LoopbackTransfer();
+		clientDies.input = input;
+		clientDies.output = new File(work, "client-dies.bin");
+		clientDies.dropChance = 5;
+		clientDies.seed = seed + 2;
+		clientDies.killClientAfterMillis = 10;
+		clientDies.deadlineMillis = 15000;
+		clientDies.run();
+		System.out.println("client killed: " + clientDies.describe());
+		t.check(clientDies.finished && !clientDies.verified, "server didn't give up on a client that was killed");
+	}
+
+	/*
+	 * A transfer whose digest doesn't match is rejected on both ends,
+	 * and what the server wrote is renamed so it can't pass for the real thing
+	 */
+	static void rejectedTransfers(TestSupport t, File input, File[] batch, File work) throws Exception
+	{
+		LoopbackTransfer single = new LoopbackTransfer();
+		single.input = input;
+		single.output = new File(work, "rejected.bin");
+		single.badDigest = true;
+		single.run();
+		System.out.println("bad digest: " + single.describe());
+		t.check(single.finished, "transfer with a bad digest didn't finish");
+		t.check(single.rejected, "bad digest wasn't rejected on both ends");
+		t.check(!single.output.exists() && new File(work, "rejected.bin.rejected").isFile(), "rejected image wasn't renamed");
+
+		LoopbackTransfer batched = new LoopbackTransfer();
+		batched.batchFiles = batch;
+		batched.output = new File(work, "rejected");
+		batched.compressed = true;
+		batched.badDigest = true;
+		batched.run();
+		System.out.println("batch with a bad digest: " + batched.describe());
+		t.check(batched.rejected, "bad batch digest wasn't rejected on both ends");
+		int left = 0;
+		for(File sent : batch)
+		{
+			if(new File(batched.output, sent.getName()).exists() || !new File(batched.output, sent.getName() + ".rejected").isFile())
+				left++;
+		}
+		t.check(left == 0, left + " files of a rejected batch weren't renamed");
+	}
+}
@@ -0,0 +1,162 @@
+package network_design_project;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/*
+ * Runs one client to server transfer over localhost with both agents in this JVM,
+ * then checks what the server wrote against what the client read, byte for byte.
+ *
+ * Set the options, call run(), then look at the results.
+ */
+class LoopbackTransfer {
+
+	static final int CLIENT_TIMEOUT_MILLIS = 30;
+	static final int LINGER_MILLIS = 200;
+	static final int IDLE_MILLIS = 2000;
+	static final byte[] TEST_KEY = "0123456789abcdef".getBytes();
+
+	//options
+	File input; //one file, or null when sending batchFiles
+	File[] batchFiles;
+	File output; //file, or directory for a batch
+	double dropChance; //percent, both directions
+	double corruptionChance; //percent, both directions
+	double reorderChance; //percent, both directions
+	long seed; //for the impairment dice, so a failing run can be rolled again. The client rolls seed + 1
+	boolean encrypted;
+	boolean compressed;
+	boolean bbr;
+	boolean badDigest; //client sends a digest that can't match, so the server has to reject the transfer
+	long killServerAfterMillis; //kill the server this far in, so the client has to give up on it. 0 for never
+	long killClientAfterMillis; //same the other way round
+	long deadlineMillis = 60000;
+
+	//results
+	boolean finished; //both agents stopped on their own before the deadline
+	boolean verified; //the server's tree hash matched and the client heard so
+	boolean identical; //output matches input byte for byte
+	boolean rejected; //the server's tree hash didn't match and the client heard so
+	boolean clientGaveUp; //the client decided the server was gone
+	long elapsedNanos;
+	long bytes;
+	TransferMetrics.Snapshot clientMetrics;
+	TransferMetrics.Snapshot serverMetrics;
+
+	/*
+	 * Returns true if the transfer finished, was verified and the output is identical
+	 */
+	boolean run() throws Exception
+	{
+		int port = TestSupport.freePort();
+		UDPServer server = new UDPServer(output.getPath(), port, false, corruptionChance, dropChance);
+		server.setLingerMillis(LINGER_MILLIS);
+		server.setIdleMillis(IDLE_MILLIS);
+		server.setReorderChance(reorderChance);
+		server.setImpairmentSeed(seed);
+		UDPClient client = new UDPClient(input != null ? input.getPath() : "unused", port, false, corruptionChance, dropChance, CLIENT_TIMEOUT_MILLIS) {
+			@Override
+			boolean rdtSend(byte[] data, int flags) throws Exception
+			{
+				if(badDigest && (flags & FLAG_DIGEST) != 0)
+					data[0] ^= 1;
+				return super.rdtSend(data, flags);
+			}
+		};
+		client.setReorderChance(reorderChance);
+		client.setImpairmentSeed(seed + 1);
+		if(encrypted)
+		{
+			server.setEncryptionKey(TEST_KEY);
+			client.setEncryptionKey(TEST_KEY);
+		}
+		client.setCompression(compressed);
+		if(bbr)
+			client.setSenderModel(UDPClient.SENDER_BBR);
+		if(batchFiles != null)
+		{
+			String[] names = new String[batchFiles.length];
+			for(int i = 0; i < names.length; i++)
+				names[i] = batchFiles[i].getPath();
+			client.setBatchFiles(names);
+		}
+
+		Thread serverThread = new Thread(server, "loopback server");
+		Thread clientThread = new Thread(client, "loopback client");
+		serverThread.start();
+		long start = System.nanoTime();
+		long deadline = System.currentTimeMillis() + deadlineMillis;
+		//the server has to be listening before the SYN goes out, or the client sees port unreachable
+		while(server.myDatagramSocket == null && serverThread.isAlive() && System.currentTimeMillis() < deadline)
+			Thread.sleep(5);
+		clientThread.start();
+		if(killServerAfterMillis > 0 || killClientAfterMillis > 0)
+		{
+			Thread.sleep(Math.max(killServerAfterMillis, killClientAfterMillis));
+			if(killServerAfterMillis > 0)
+				server.killThisAgent();
+			else
+				client.killThisAgent();
+		}
+
+		clientThread.join(Math.max(1, deadline - System.currentTimeMillis()));
+		elapsedNanos = System.nanoTime() - start;
+		serverThread.join(Math.max(1, deadline - System.currentTimeMillis()));
+		finished = !clientThread.isAlive() && !serverThread.isAlive() && client.finished;
+		if(clientThread.isAlive() || serverThread.isAlive())
+		{
+			client.killThisAgent();
+			server.killThisAgent();
+			clientThread.join(5000);
+			serverThread.join(5000);
+		}
+
+		verified = client.verifyStatus == client.VERIFY_OK && server.verifyStatus == server.VERIFY_OK;
+		rejected = client.verifyStatus == client.VERIFY_FAILED && server.verifyStatus == server.VERIFY_FAILED;
+		clientGaveUp = client.serverGone;
+		clientMetrics = client.metrics.snapshot();
+		serverMetrics = server.metrics.snapshot();
+		identical = compareOutput();
+		return finished && verified && identical;
+	}
+
+	boolean compareOutput() throws IOException
+	{
+		bytes = 0;
+		if(batchFiles == null)
+			return sameContents(input, output);
+		for(File sent : batchFiles)
+		{
+			if(!sameContents(sent, new File(output, sent.getName())))
+				return false;
+		}
+		return true;
+	}
+
+	boolean sameContents(File sent, File received) throws IOException
+	{
+		if(!received.isFile())
+			return false;
+		byte[] want = Files.readAllBytes(sent.toPath());
+		bytes += want.length;
+		return Arrays.equals(want, Files.readAllBytes(received.toPath()));
+	}
+
+	/*
+	 * Goodput in megabytes per second
+	 */
+	double getMegabytesPerSecond()
+	{
+		return bytes / 1e6 / (elapsedNanos / 1e9);
+	}
+
+	String describe()
+	{
+		return String.format("%s in %d ms (%.1f MB/s), %d retransmissions, %d timeouts, %s%s",
+				finished ? "finished" : "DIDN'T FINISH", elapsedNanos / 1000000, getMegabytesPerSecond(),
+				clientMetrics.retransmissions, clientMetrics.timeouts,
+				verified ? "verified" : "NOT VERIFIED", identical ? "" : ", OUTPUT DIFFERS");
+	}
+}
@@ -0,0 +1,117 @@
+package network_design_project;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/*
+ * Pushes a file to several receivers over localhost with the sender's fan-out mode,
+ * with packets lost on the way to each receiver. Then does it again with a sender
+ * that is killed partway, and checks every receiver gives up on its own.
+ *
+ * Usage: java network_design_project.MulticastLoopbackTest [loss %] [file KB] [receivers]
+ */
+public class MulticastLoopbackTest {
+
+	static final long RATE = 20L * 1024 * 1024;
+	static final long LINGER_MILLIS = 2000;
+	static final long DEADLINE_MILLIS = 60000;
+
+	public static void main(String[] args) throws Exception
+	{
+		double loss = args.length > 0 ? Double.parseDouble(args[0]) : 20;
+		int fileKilobytes = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+		int receivers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+		TestSupport t = new TestSupport("MulticastLoopbackTest");
+		File work = TestSupport.tempDirectory("multicast");
+		try {
+			File input = TestSupport.writeMixedFile(new File(work, "input.bin"), fileKilobytes * 1024, 11);
+			byte[] want = Files.readAllBytes(input.toPath());
+
+			//every receiver ends up with the whole file
+			MulticastReceiver[] done = push(input, work, "full", receivers, loss, false);
+			for(int i = 0; i < receivers; i++)
+			{
+				File output = new File(done[i].imageName);
+				t.check(done[i].complete && output.isFile() && Arrays.equals(Files.readAllBytes(output.toPath()), want),
+						"receiver " + i + " at " + loss + "% loss didn't get the file");
+			}
+
+			//sender killed partway: receivers give up, and nothing is left looking finished
+			MulticastReceiver[] abandoned = push(input, work, "abandoned", receivers, loss, true);
+			for(int i = 0; i < receivers; i++)
+			{
+				t.check(!abandoned[i].complete, "receiver " + i + " finished a transfer whose sender was killed early");
+				//a receiver that lost every announce never opened a file at all
+				t.check(!new File(abandoned[i].imageName).exists() && (new File(abandoned[i].imageName + ".incomplete").isFile() || !abandoned[i].announced),
+						"receiver " + i + " didn't rename what it had to .incomplete");
+			}
+		} finally {
+			TestSupport.deleteTree(work);
+		}
+		t.finish();
+	}
+
+	/*
+	 * Run one sender to this many receivers. If killSender, the sender is stopped a little way in.
+	 * Fails the whole test if any receiver is still running after the deadline
+	 */
+	static MulticastReceiver[] push(File input, File work, String name, int receivers, double loss, boolean killSender) throws Exception
+	{
+		MulticastReceiver[] receiver = new MulticastReceiver[receivers];
+		Thread[] receiverThread = new Thread[receivers];
+		int[] ports = new int[receivers];
+		for(int i = 0; i < receivers; i++)
+		{
+			ports[i] = TestSupport.freePort();
+			receiver[i] = new MulticastReceiver(new File(work, name + i + ".bin").getPath(), null, ports[i], false, 0, loss);
+			receiverThread[i] = new Thread(receiver[i], name + " receiver " + i);
+			receiverThread[i].start();
+		}
+		for(int i = 0; i < receivers; i++)
+		{
+			while(receiver[i].myDatagramSocket == null && receiverThread[i].isAlive())
+				Thread.sleep(5);
+		}
+
+		MulticastSender sender = new MulticastSender(input.getPath(), null, 0, false, 0, 0);
+		sender.setFanOutPorts(ports);
+		sender.setRate(RATE);
+		sender.setLingerMillis(LINGER_MILLIS);
+		Thread senderThread = new Thread(sender, name + " sender");
+		long start = System.currentTimeMillis();
+		senderThread.start();
+		if(killSender)
+		{
+			while(sender.highestSent < sender.segmentCount / 4 && senderThread.isAlive())
+				Thread.sleep(1);
+			sender.killThisAgent();
+		}
+		senderThread.join(DEADLINE_MILLIS);
+
+		//once the sender is gone a receiver has to notice by itself
+		long senderGoneAt = System.currentTimeMillis();
+		long bound = receiver[0].MAX_SILENT_RETRIES * receiver[0].NAK_RETRY_NANOS / 1000000 + 2000;
+		boolean stuck = false;
+		for(int i = 0; i < receivers; i++)
+		{
+			receiverThread[i].join(Math.max(1, senderGoneAt + bound - System.currentTimeMillis()));
+			if(receiverThread[i].isAlive())
+			{
+				stuck = true;
+				System.out.println("FAIL MulticastLoopbackTest: " + name + " receiver " + i + " still running " + bound + " ms after the sender stopped, missing "
+						+ (receiver[i].segmentCount - receiver[i].receivedCount) + " of " + receiver[i].segmentCount);
+				receiver[i].killThisAgent();
+				receiverThread[i].join(5000);
+			}
+		}
+		System.out.println(name + ": sender ran " + (senderGoneAt - start) + " ms, " + sender.metrics.retransmissions.sum() + " repairs for "
+				+ sender.metrics.naks.sum() + " NAKed segments, " + sender.metrics.naksSuppressed.sum() + " suppressed");
+		if(stuck)
+		{
+			TestSupport.deleteTree(work);
+			System.exit(1);
+		}
+		return receiver;
+	}
+}
@@ -0,0 +1,113 @@
+package network_design_project;
+
+import java.io.File;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*
+ * Records every packet of an encrypted transfer on its way to the server through a relay,
+ * then plays the whole recording to a fresh server that already has a file by that name.
+ * The fresh server has to leave the file alone and never verify anything.
+ *
+ * Usage: java network_design_project.ReplayTest
+ */
+public class ReplayTest {
+
+	static final int REPLAY_WAIT_MILLIS = 500;
+
+	public static void main(String[] args) throws Exception
+	{
+		TestSupport t = new TestSupport("ReplayTest");
+		File work = TestSupport.tempDirectory("replay");
+		try {
+			File input = TestSupport.writeMixedFile(new File(work, "input.bin"), 200 * 1024, 3);
+			ArrayList<byte[]> recording = new ArrayList<byte[]>();
+
+			//the real transfer, through the relay
+			int serverPort = TestSupport.freePort();
+			UDPServer server = new UDPServer(new File(work, "first.bin").getPath(), serverPort, false, 0, 0);
+			server.setEncryptionKey(LoopbackTransfer.TEST_KEY);
+			server.setLingerMillis(LoopbackTransfer.LINGER_MILLIS);
+			DatagramSocket relay = new DatagramSocket(0, InetAddress.getByName("localhost"));
+			Thread relayThread = new Thread(() -> relay(relay, serverPort, recording), "relay");
+			UDPClient client = new UDPClient(input.getPath(), relay.getLocalPort(), false, 0, 0, LoopbackTransfer.CLIENT_TIMEOUT_MILLIS);
+			client.setEncryptionKey(LoopbackTransfer.TEST_KEY);
+			Thread serverThread = new Thread(server, "server");
+			serverThread.start();
+			while(server.myDatagramSocket == null)
+				Thread.sleep(5);
+			relayThread.start();
+			Thread clientThread = new Thread(client, "client");
+			clientThread.start();
+			clientThread.join(30000);
+			serverThread.join(30000);
+			relay.close();
+			relayThread.join();
+			t.check(server.verifyStatus == server.VERIFY_OK, "the recorded transfer itself didn't verify");
+
+			//play it all back to a new server
+			File target = new File(work, "target.bin");
+			byte[] original = "ORIGINAL CONTENTS".getBytes();
+			Files.write(target.toPath(), original);
+			int replayPort = TestSupport.freePort();
+			UDPServer victim = new UDPServer(target.getPath(), replayPort, false, 0, 0);
+			victim.setEncryptionKey(LoopbackTransfer.TEST_KEY);
+			Thread victimThread = new Thread(victim, "replay server");
+			victimThread.start();
+			while(victim.myDatagramSocket == null)
+				Thread.sleep(5);
+			try (DatagramSocket replayer = new DatagramSocket()) {
+				for(byte[] packet : recording)
+					replayer.send(new DatagramPacket(packet, packet.length, InetAddress.getByName("localhost"), replayPort));
+				Thread.sleep(REPLAY_WAIT_MILLIS);
+			}
+			victim.killThisAgent();
+			victimThread.join(5000);
+
+			t.check(recording.size() > 2, "nothing was recorded");
+			t.check(victim.synReceived, "the replayed SYN wasn't even accepted, so nothing was tested");
+			t.check(victim.verifyStatus == victim.VERIFY_PENDING, "the replayed transfer was verified");
+			t.check(victim.authFailures > 0, "no replayed packet failed authentication");
+			t.check(Arrays.equals(Files.readAllBytes(target.toPath()), original), "the replay changed the existing file");
+		} finally {
+			TestSupport.deleteTree(work);
+		}
+		t.finish();
+	}
+
+	/*
+	 * Pass packets between the client and the server on serverPort, keeping a copy of the client's
+	 */
+	static void relay(DatagramSocket relay, int serverPort, ArrayList<byte[]> recording)
+	{
+		byte[] buffer = new byte[2048];
+		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+		SocketAddress client = null;
+		try {
+			while(true)
+			{
+				packet.setLength(buffer.length);
+				relay.receive(packet);
+				byte[] copy = Arrays.copyOf(buffer, packet.getLength());
+				if(packet.getPort() == serverPort)
+				{
+					if(client != null)
+						relay.send(new DatagramPacket(copy, copy.length, client));
+				}
+				else
+				{
+					client = packet.getSocketAddress();
+					recording.add(copy);
+					relay.send(new DatagramPacket(copy, copy.length, InetAddress.getByName("localhost"), serverPort));
+				}
+			}
+		} catch (Exception e) {
+			//relay closed, the transfer is over
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package network_design_project;
+
+import java.io.File;
+import java.util.Arrays;
+
+/*
+ * Runs the same loopback transfer over and over in one JVM and watches for slow decay:
+ * goodput drifting down, heap left over after each transfer creeping up, or agent threads
+ * that never exit. Each round prints a row so a long run can be graphed.
+ *
+ * Usage: java network_design_project.SoakTest [rounds] [file KB] [impairment %] [seed]
+ */
+public class SoakTest {
+
+	static final int WARMUP_ROUNDS = 2; //left out of the comparisons while the JIT settles
+	static final double MAX_THROUGHPUT_DROP = 0.5; //late rounds may not be slower than half the early ones
+	static final long MAX_HEAP_GROWTH = 16L * 1024 * 1024;
+
+	public static void main(String[] args) throws Exception
+	{
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 30;
+		int fileKilobytes = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+		double impairment = args.length > 2 ? Double.parseDouble(args[2]) : 2;
+		long seed = args.length > 3 ? Long.parseLong(args[3]) : System.nanoTime();
+		TestSupport t = new TestSupport("SoakTest (seed " + seed + ")");
+		if(!t.check(rounds >= WARMUP_ROUNDS + 3, "needs at least " + (WARMUP_ROUNDS + 3) + " rounds"))
+			t.finish();
+
+		File work = TestSupport.tempDirectory("soak");
+		try {
+			soak(t, rounds, fileKilobytes, impairment, seed, work);
+		} finally {
+			TestSupport.deleteTree(work);
+		}
+		t.finish();
+	}
+
+	/*
+	 * Run the rounds in work and check the trends across them
+	 */
+	static void soak(TestSupport t, int rounds, int fileKilobytes, double impairment, long seed, File work) throws Exception
+	{
+		File input = TestSupport.writeMixedFile(new File(work, "input.bin"), fileKilobytes * 1024, 7);
+		File output = new File(work, "output.bin");
+		int threadsBefore = Thread.activeCount();
+
+		double[] throughput = new double[rounds];
+		long[] heapUsed = new long[rounds];
+		System.out.println("round,ms,mb_per_s,retransmissions,timeouts,heap_used_kb");
+		for(int round = 0; round < rounds; round++)
+		{
+			LoopbackTransfer transfer = new LoopbackTransfer();
+			transfer.input = input;
+			transfer.output = output;
+			transfer.dropChance = impairment;
+			transfer.corruptionChance = impairment;
+			transfer.seed = seed + 2 * round;
+			//alternate the options so every path gets soaked
+			transfer.compressed = round % 2 == 1;
+			transfer.encrypted = round % 3 == 2;
+			boolean ok = transfer.run();
+			t.check(ok, "round " + round + ": " + transfer.describe());
+
+			throughput[round] = transfer.getMegabytesPerSecond();
+			heapUsed[round] = usedHeapAfterGc();
+			System.out.println(round + "," + transfer.elapsedNanos / 1000000 + "," + String.format("%.2f", throughput[round]) + ","
+					+ transfer.clientMetrics.retransmissions + "," + transfer.clientMetrics.timeouts + "," + heapUsed[round] / 1024);
+			output.delete();
+		}
+
+		//compare the first and last thirds after warmup, by median so one unlucky round doesn't decide it
+		int third = (rounds - WARMUP_ROUNDS) / 3;
+		double early = median(Arrays.copyOfRange(throughput, WARMUP_ROUNDS, WARMUP_ROUNDS + third));
+		double late = median(Arrays.copyOfRange(throughput, rounds - third, rounds));
+		System.out.println(String.format("Goodput early %.2f MB/s, late %.2f MB/s", early, late));
+		t.check(late >= early * MAX_THROUGHPUT_DROP, String.format("goodput drifted from %.2f to %.2f MB/s", early, late));
+
+		long growth = heapUsed[rounds - 1] - heapUsed[WARMUP_ROUNDS - 1];
+		System.out.println("Heap after GC grew " + growth / 1024 + " KB from round " + (WARMUP_ROUNDS - 1) + " to " + (rounds - 1));
+		t.check(growth < MAX_HEAP_GROWTH, "heap after GC grew by " + growth / 1024 + " KB");
+
+		//every agent thread should be gone once its transfer is over
+		Thread.sleep(200);
+		int leftover = Thread.activeCount() - threadsBefore;
+		t.check(leftover <= 0, leftover + " threads still running after the last round");
+	}
+
+	static long usedHeapAfterGc() throws InterruptedException
+	{
+		Runtime runtime = Runtime.getRuntime();
+		for(int i = 0; i < 3; i++)
+		{
+			System.gc();
+			Thread.sleep(20);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	static double median(double[] values)
+	{
+		double[] sorted = values.clone();
+		Arrays.sort(sorted);
+		int mid = sorted.length / 2;
+		return sorted.length % 2 == 1 ? sorted[mid] : (sorted[mid - 1] + sorted[mid]) / 2;
+	}
+}
@@ -0,0 +1,111 @@
+package network_design_project;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+/*
+ * Bits shared by the main()-driven tests. There is no test framework in this tree,
+ * so each test counts its own failures and exits nonzero if there were any.
+ */
+class TestSupport {
+
+	String testName;
+	int checks;
+	int failures;
+
+	TestSupport(String testName)
+	{
+		this.testName = testName;
+	}
+
+	/*
+	 * Count a check, and print it if it failed
+	 */
+	boolean check(boolean ok, String what)
+	{
+		checks++;
+		if(!ok)
+		{
+			failures++;
+			System.out.println("FAIL " + testName + ": " + what);
+		}
+		return ok;
+	}
+
+	/*
+	 * Print the totals and exit 1 if anything failed
+	 */
+	void finish()
+	{
+		System.out.println((failures == 0 ? "PASS " : "FAIL ") + testName + ": " + (checks - failures) + " of " + checks + " checks passed");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	/*
+	 * A UDP port nothing is bound to right now
+	 */
+	static int freePort() throws SocketException
+	{
+		try (DatagramSocket probe = new DatagramSocket(0)) {
+			return probe.getLocalPort();
+		}
+	}
+
+	/*
+	 * A fresh empty directory under the system temp directory.
+	 * The test has to deleteTree() it when it is done, deleteOnExit() can't remove a directory with files in it
+	 */
+	static File tempDirectory(String prefix) throws IOException
+	{
+		return Files.createTempDirectory(prefix).toFile();
+	}
+
+	/*
+	 * Delete a file, or a directory and everything under it
+	 */
+	static void deleteTree(File file)
+	{
+		File[] children = file.listFiles();
+		if(children != null)
+		{
+			for(File child : children)
+				deleteTree(child);
+		}
+		file.delete();
+	}
+
+	/*
+	 * Write a file of length bytes that is random in places and repetitive text in others,
+	 * so compression gets blocks it can shrink and blocks it has to send raw
+	 */
+	static File writeMixedFile(File file, int length, long seed) throws IOException
+	{
+		Random random = new Random(seed);
+		byte[] data = new byte[length];
+		byte[] text = ("GET /index.html HTTP/1.1 200 " + seed + " \"Mozilla/5.0 (X11; Linux x86_64)\"\n").getBytes(StandardCharsets.US_ASCII);
+		int pos = 0;
+		while(pos < length)
+		{
+			int run = Math.min(length - pos, 1 + random.nextInt(20000));
+			if(random.nextBoolean())
+			{
+				byte[] noise = new byte[run];
+				random.nextBytes(noise);
+				System.arraycopy(noise, 0, data, pos, run);
+			}
+			else
+			{
+				for(int i = 0; i < run; i++)
+					data[pos + i] = text[(pos + i) % text.length];
+			}
+			pos += run;
+		}
+		Files.write(file.toPath(), data);
+		return file;
+	}
+}